@@ -24,13 +24,14 @@ import java.util.concurrent.TimeUnit;
  * The tokens are refilled in bursts rather than at a fixed rate.  This refill strategy will never allow more than
  * N tokens to be consumed during a window of time T.
  */
-public class FixedIntervalRefillStrategy implements TokenBucketImpl.RefillStrategy
+public class FixedIntervalRefillStrategy implements TokenBucketImpl.RateReportingRefillStrategy
 {
   private final Ticker ticker;
-  private final long numTokensPerPeriod;
-  private final long periodDurationInNanos;
+  private long numTokensPerPeriod;
+  private long periodDurationInNanos;
   private long lastRefillTime;
   private long nextRefillTime;
+  private boolean refilled;
 
   /**
    * Create a FixedIntervalRefillStrategy.
@@ -67,7 +68,45 @@ public class FixedIntervalRefillStrategy implements TokenBucketImpl.RefillStrate
     // ...and we'll refill again one period after the last time we refilled.
     nextRefillTime = lastRefillTime + periodDurationInNanos;
 
-    return numPeriods * numTokensPerPeriod;
+    // After a long enough idle period the number of tokens overflows, the bucket will be full either way.
+    long numTokens = (numTokensPerPeriod > 0 && numPeriods > Long.MAX_VALUE / numTokensPerPeriod)
+        ? Long.MAX_VALUE
+        : numPeriods * numTokensPerPeriod;
+
+    // The very first refill always covers an arbitrary number of periods, so only later ones count as catching up.
+    if (refilled && numPeriods > 1) {
+      TokenBucketEvents.commitRefillCatchUp(numPeriods, numTokens);
+    }
+    refilled = true;
+
+    return numTokens;
+  }
+
+  /**
+   * Change the rate at which tokens are provided.  The time of the last refill is kept, so the next refill will happen
+   * one new period after the last one.
+   *
+   * @param numTokensPerPeriod The number of tokens to add to the bucket every period.
+   * @param period             How often to refill the bucket.
+   * @param unit               Unit for period.
+   */
+  synchronized void setRate(long numTokensPerPeriod, long period, TimeUnit unit)
+  {
+    this.numTokensPerPeriod = numTokensPerPeriod;
+    this.periodDurationInNanos = unit.toNanos(period);
+    this.nextRefillTime = lastRefillTime + periodDurationInNanos;
+  }
+
+  @Override
+  public synchronized long getNumTokensPerRefill()
+  {
+    return numTokensPerPeriod;
+  }
+
+  @Override
+  public synchronized long getRefillInterval(TimeUnit unit)
+  {
+    return unit.convert(periodDurationInNanos, TimeUnit.NANOSECONDS);
   }
 
   @Override
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2012-2014 Brandon Beck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.isomorphism.util;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+/**
+ * Java Flight Recorder events emitted by the token bucket implementations.  Every helper checks whether its event
+ * type is enabled before creating an event, so when no recording is capturing these events the calling code doesn't
+ * allocate anything.
+ * <p/>
+ * This is the only class that refers to {@code jdk.jfr}, and it's only ever used through {@link TokenBucketEvents},
+ * which doesn't touch it on JVMs without Flight Recorder.  For the same reason nothing outside of this class sees the
+ * event types themselves.
+ */
+final class FlightRecorderEvents
+{
+  private FlightRecorderEvents() {}
+
+  private static final EventType CONSUME_WAIT = EventType.getEventType(ConsumeWaitEvent.class);
+  private static final EventType DENIED_BURST = EventType.getEventType(DeniedBurstEvent.class);
+  private static final EventType REFILL_CATCH_UP = EventType.getEventType(RefillCatchUpEvent.class);
+
+  /**
+   * Start timing a blocking consume.  Returns {@code null} if the event isn't enabled.
+   *
+   * @param numTokens The number of tokens being consumed.
+   * @return The started event, or {@code null}.
+   */
+  static Object beginConsumeWait(long numTokens)
+  {
+    if (!CONSUME_WAIT.isEnabled()) {
+      return null;
+    }
+
+    ConsumeWaitEvent event = new ConsumeWaitEvent();
+    event.numTokens = numTokens;
+    event.begin();
+    return event;
+  }
+
+  /**
+   * Finish timing a blocking consume.  The event is only recorded if the wait exceeded the configured threshold.
+   *
+   * @param event The event returned by {@link #beginConsumeWait(long)}, may be {@code null}.
+   */
+  static void commitConsumeWait(Object event)
+  {
+    if (event != null) {
+      ((ConsumeWaitEvent) event).commit();
+    }
+  }
+
+  /**
+   * Record a run of consecutive denied consumes that has just ended.
+   *
+   * @param numDenied      The number of consumes that were denied.
+   * @param durationNanos  How long the bucket was denying consumes for.
+   */
+  static void commitDeniedBurst(long numDenied, long durationNanos)
+  {
+    if (!DENIED_BURST.isEnabled()) {
+      return;
+    }
+
+    DeniedBurstEvent event = new DeniedBurstEvent();
+    event.numDenied = numDenied;
+    event.burstDuration = durationNanos;
+    event.commit();
+  }
+
+  /**
+   * Record a refill that had to make up for more than one missed period.
+   *
+   * @param numPeriods The number of periods that were refilled at once.
+   * @param numTokens  The number of tokens that were refilled.
+   */
+  static void commitRefillCatchUp(long numPeriods, long numTokens)
+  {
+    if (!REFILL_CATCH_UP.isEnabled()) {
+      return;
+    }
+
+    RefillCatchUpEvent event = new RefillCatchUpEvent();
+    event.numPeriods = numPeriods;
+    event.numTokens = numTokens;
+    event.commit();
+  }
+
+  @Name("org.isomorphism.util.ConsumeWait")
+  @Label("Token Bucket Consume Wait")
+  @Description("A thread blocked in consume() waiting for tokens")
+  @Category("Token Bucket")
+  @Threshold("10 ms")
+  static final class ConsumeWaitEvent extends Event
+  {
+    @Label("Tokens")
+    long numTokens;
+  }
+
+  @Name("org.isomorphism.util.DeniedBurst")
+  @Label("Token Bucket Denied Burst")
+  @Description("A run of consecutive tryConsume() calls that were denied, recorded when the next one succeeds")
+  @Category("Token Bucket")
+  static final class DeniedBurstEvent extends Event
+  {
+    @Label("Denied Consumes")
+    long numDenied;
+
+    @Label("Burst Duration")
+    @Timespan(Timespan.NANOSECONDS)
+    long burstDuration;
+  }
+
+  @Name("org.isomorphism.util.RefillCatchUp")
+  @Label("Token Bucket Refill Catch Up")
+  @Description("A fixed interval refill that added tokens for more than one period at once")
+  @Category("Token Bucket")
+  static final class RefillCatchUpEvent extends Event
+  {
+    @Label("Periods")
+    long numPeriods;
+
+    @Label("Tokens")
+    long numTokens;
+  }
+}
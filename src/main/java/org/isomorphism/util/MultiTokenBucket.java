@@ -0,0 +1,78 @@
+/*
+ * Copyright 2012-2014 Brandon Beck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.isomorphism.util;
+
+/**
+ * A token bucket that rate limits several resources at once, for example requests per second and bytes per second.
+ * The bucket holds a separate token count for each dimension, each with its own capacity and refill strategy, and a
+ * consume either takes the requested tokens from every dimension or from none of them.
+ *
+ * @see TokenBucket
+ */
+public interface MultiTokenBucket
+{
+  /**
+   * Returns the number of dimensions, or resources, that this bucket holds tokens for.
+   *
+   * @return The number of dimensions of the bucket.
+   */
+  int getNumDimensions();
+
+  /**
+   * Returns the capacity of a single dimension of this token bucket.
+   *
+   * @param dimension The dimension to return the capacity of.
+   * @return The capacity of the dimension.
+   */
+  long getCapacity(int dimension);
+
+  /**
+   * Returns the current number of tokens in a single dimension of the bucket.
+   *
+   * @param dimension The dimension to return the number of tokens of.
+   * @return The current number of tokens in the dimension.
+   */
+  long getNumTokens(int dimension);
+
+  /**
+   * Attempt to consume tokens from every dimension of the bucket.  If the tokens were available in every dimension
+   * then they are all consumed and {@code true} is returned, otherwise no tokens are consumed and {@code false} is
+   * returned.
+   *
+   * @param numTokens The number of tokens to consume from each dimension.  Must have one non-negative entry per
+   *                  dimension, no larger than that dimension's capacity, and at least one entry must be positive.
+   * @return {@code true} if the tokens were consumed, {@code false} otherwise.
+   */
+  boolean tryConsume(long[] numTokens);
+
+  /**
+   * Consume tokens from every dimension of the bucket.  If enough tokens are not currently available in every
+   * dimension then this method will block until they are.
+   *
+   * @param numTokens The number of tokens to consume from each dimension.
+   * @see #tryConsume(long[])
+   */
+  void consume(long[] numTokens);
+
+  /**
+   * Refills a single dimension of the bucket with the specified number of tokens.  If the dimension is currently full
+   * or near capacity then fewer than {@code numTokens} may be added.
+   *
+   * @param dimension The dimension to add tokens to.
+   * @param numTokens The number of tokens to add.
+   */
+  void refill(int dimension, long numTokens);
+}
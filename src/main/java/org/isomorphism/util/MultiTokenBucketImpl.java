@@ -0,0 +1,144 @@
+/*
+ * Copyright 2012-2014 Brandon Beck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.isomorphism.util;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkElementIndex;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A multi-dimensional token bucket implementation.  Each dimension behaves like a {@link TokenBucketImpl}, it has a
+ * finite capacity and its own {@code RefillStrategy}, but all of the dimensions are guarded by a single lock so that a
+ * consume can check and take tokens from every dimension in one critical section.  This avoids having to acquire
+ * several buckets in turn and refund the earlier ones when a later one doesn't have enough tokens.
+ */
+class MultiTokenBucketImpl implements MultiTokenBucket
+{
+  private final long[] capacities;
+  private final TokenBucket.RefillStrategy[] refillStrategies;
+  private final TokenBucket.SleepStrategy sleepStrategy;
+  private final long[] sizes;
+
+  MultiTokenBucketImpl(long[] capacities, long[] initialTokens, TokenBucket.RefillStrategy[] refillStrategies,
+                       TokenBucket.SleepStrategy sleepStrategy)
+  {
+    checkArgument(capacities.length > 0);
+    checkArgument(initialTokens.length == capacities.length);
+    checkArgument(refillStrategies.length == capacities.length);
+
+    for (int i = 0; i < capacities.length; i++) {
+      checkArgument(capacities[i] > 0);
+      checkArgument(initialTokens[i] <= capacities[i]);
+      checkNotNull(refillStrategies[i]);
+    }
+
+    this.capacities = capacities.clone();
+    this.refillStrategies = refillStrategies.clone();
+    this.sleepStrategy = checkNotNull(sleepStrategy);
+    this.sizes = initialTokens.clone();
+  }
+
+  @Override
+  public int getNumDimensions()
+  {
+    return capacities.length;
+  }
+
+  @Override
+  public long getCapacity(int dimension)
+  {
+    checkElementIndex(dimension, capacities.length);
+    return capacities[dimension];
+  }
+
+  @Override
+  public synchronized long getNumTokens(int dimension)
+  {
+    checkElementIndex(dimension, capacities.length);
+
+    // Give the refill strategies a chance to add tokens if they need to so that we have an accurate count.
+    refillAll();
+
+    return sizes[dimension];
+  }
+
+  @Override
+  public synchronized boolean tryConsume(long[] numTokens)
+  {
+    checkArgument(numTokens.length == capacities.length, "Must specify a number of tokens for every dimension");
+
+    boolean positive = false;
+    for (int i = 0; i < numTokens.length; i++) {
+      checkArgument(numTokens[i] >= 0, "Number of tokens to consume must not be negative");
+      checkArgument(numTokens[i] <= capacities[i],
+          "Number of tokens to consume must be less than the capacity of the bucket.");
+      positive |= numTokens[i] > 0;
+    }
+    checkArgument(positive, "Number of tokens to consume must be positive in at least one dimension");
+
+    refillAll();
+
+    // Only consume once we know that every dimension can afford it.
+    for (int i = 0; i < numTokens.length; i++) {
+      if (numTokens[i] > sizes[i]) {
+        return false;
+      }
+    }
+
+    for (int i = 0; i < numTokens.length; i++) {
+      sizes[i] -= numTokens[i];
+    }
+
+    return true;
+  }
+
+  @Override
+  public void consume(long[] numTokens)
+  {
+    while (true) {
+      if (tryConsume(numTokens)) {
+        break;
+      }
+
+      sleepStrategy.sleep();
+    }
+  }
+
+  @Override
+  public synchronized void refill(int dimension, long numTokens)
+  {
+    checkElementIndex(dimension, capacities.length);
+
+    long newTokens = Math.min(capacities[dimension], Math.max(0, numTokens));
+
+    // Written this way so that adding to a nearly full dimension can't overflow.
+    sizes[dimension] = (newTokens > capacities[dimension] - sizes[dimension])
+        ? capacities[dimension]
+        : sizes[dimension] + newTokens;
+  }
+
+  private void refillAll()
+  {
+    for (int i = 0; i < refillStrategies.length; i++) {
+      if (sizes[i] > 0 && refillStrategies[i] instanceof TokenBucketImpl.ColdTokensRefillStrategy) {
+        sizes[i] -= Math.min(sizes[i],
+            ((TokenBucketImpl.ColdTokensRefillStrategy) refillStrategies[i]).getNumColdTokens(sizes[i]));
+      }
+
+      refill(i, refillStrategies[i].refill());
+    }
+  }
+}
@@ -0,0 +1,352 @@
+/*
+ * Copyright 2012-2014 Brandon Beck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.isomorphism.util;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableMap;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Token buckets for a population of keys, such as tenants, whose limits come from a quota configuration file.  See
+ * {@link QuotaRules} for the format of the file.  Each key gets its own token bucket the first time it is looked up,
+ * built from the rule that matches the key and starting out full.  Looking up a key takes no lock unless its bucket
+ * has to be built, and never waits for the file to be read.
+ * <p/>
+ * The file can be reloaded, either explicitly or automatically by watching it for changes.  A reload only changes
+ * what it has to.  Buckets whose rule kept its limits are left alone, buckets whose rule changed its limits are
+ * updated in place keeping their tokens, and only the buckets of keys that now match a different rule, or no rule at
+ * all, are discarded and rebuilt on their next lookup.  If the file can't be read or parsed then the previous rules
+ * stay in effect.
+ * <p/>
+ * So that a client sending arbitrary keys can't grow the set of buckets without bound, a bucket whose key hasn't been
+ * looked up for long enough that its bucket would have refilled completely is evicted, to be rebuilt full on its next
+ * lookup.  Since that is how the bucket would have been anyway eviction doesn't change any limits, provided that the
+ * bucket is looked up for every request rather than held on to.
+ */
+public class QuotaBuckets implements Closeable
+{
+  private static final Logger LOG = Logger.getLogger(QuotaBuckets.class.getName());
+
+  /** How long to wait for a burst of changes to the file to finish before reloading it. */
+  private static final long RELOAD_DELAY_MILLIS = 100;
+
+  /** The number of keys below which idle buckets aren't looked for. */
+  private static final int MIN_EVICTION_SIZE = 1024;
+
+  private final Path file;
+  private final Ticker ticker;
+  private final ConcurrentMap<String, Entry> buckets = new ConcurrentHashMap<String, Entry>();
+  private volatile State state = null;
+  private WatchService watchService = null;
+
+  // Idle buckets are looked for once the number of keys reaches twice what it was after the last time.
+  private final AtomicInteger evictionSize = new AtomicInteger(MIN_EVICTION_SIZE);
+  private final AtomicBoolean evicting = new AtomicBoolean();
+
+  private QuotaBuckets(Path file, Ticker ticker)
+  {
+    this.file = checkNotNull(file);
+    this.ticker = checkNotNull(ticker);
+  }
+
+  /**
+   * Load the quota configuration file at the specified path.
+   *
+   * @throws IOException              If the file can't be read.
+   * @throws IllegalArgumentException If the file isn't a valid quota configuration.
+   */
+  public static QuotaBuckets load(Path file) throws IOException
+  {
+    return load(file, Ticker.systemTicker());
+  }
+
+  /** Load the quota configuration file at the specified path, using a ticker to tell how long keys have been idle. */
+  static QuotaBuckets load(Path file, Ticker ticker) throws IOException
+  {
+    QuotaBuckets quotaBuckets = new QuotaBuckets(file, ticker);
+    quotaBuckets.reload();
+    return quotaBuckets;
+  }
+
+  /**
+   * Returns the token bucket for a key, or {@code null} if no rule matches the key.
+   *
+   * @param key The key to return the token bucket of.
+   * @return The token bucket for the key.
+   */
+  public TokenBucket getBucket(String key)
+  {
+    long now = ticker.read();
+
+    while (true) {
+      State state = this.state;
+
+      // A key that matched no rule is only known not to match the rules it was looked up against.
+      Entry entry = buckets.get(key);
+      if (entry != null && (entry.bucket != null || entry.rules == state.rules)) {
+        entry.lastAccessTime = now;
+        return entry.bucket;
+      }
+
+      QuotaRules.Rule rule = state.rules.match(key);
+      Entry newEntry = (rule == null)
+          ? new Entry(state.rules, null, null, now)
+          : new Entry(state.rules, rule.pattern, newBucket(state.configs.get(rule.pattern)), now);
+
+      // If another thread beat us to it then use its bucket instead.
+      boolean added = (entry == null)
+          ? buckets.putIfAbsent(key, newEntry) == null
+          : buckets.replace(key, entry, newEntry);
+      if (!added) {
+        continue;
+      }
+
+      // A reload that happened in the meantime may have missed our bucket, so start over with the new rules.
+      if (this.state != state) {
+        buckets.remove(key, newEntry);
+        continue;
+      }
+
+      if (entry == null && buckets.size() >= evictionSize.get()) {
+        evictIdleBuckets(now);
+      }
+
+      return newEntry.bucket;
+    }
+  }
+
+  /**
+   * Reload the quota configuration file, applying any changes to the existing buckets.
+   *
+   * @throws IOException              If the file can't be read.
+   * @throws IllegalArgumentException If the file isn't a valid quota configuration.
+   */
+  public void reload() throws IOException
+  {
+    QuotaRules rules = QuotaRules.parse(Files.readAllLines(file, StandardCharsets.UTF_8));
+
+    synchronized (this) {
+      State previous = state;
+
+      // Update the configs of rules that are still around in place, and create configs for new rules.
+      ImmutableMap.Builder<String, TokenBucketConfig> configs = ImmutableMap.builder();
+      for (QuotaRules.Rule rule : rules.getRules().values()) {
+        TokenBucketConfig config = (previous == null) ? null : previous.configs.get(rule.pattern);
+        if (config == null) {
+          config = new TokenBucketConfig(rule.capacity, rule.refillTokens, rule.period, rule.unit);
+        } else if (!previous.rules.getRules().get(rule.pattern).hasSameLimits(rule)) {
+          config.update(rule.capacity, rule.refillTokens, rule.period, rule.unit);
+        }
+
+        configs.put(rule.pattern, config);
+      }
+
+      state = new State(rules, configs.build());
+
+      // Discard the buckets of keys that now match a different rule.
+      for (Map.Entry<String, Entry> bucket : buckets.entrySet()) {
+        QuotaRules.Rule rule = rules.match(bucket.getKey());
+        if (!Objects.equal(rule == null ? null : rule.pattern, bucket.getValue().pattern)) {
+          buckets.remove(bucket.getKey(), bucket.getValue());
+        }
+      }
+    }
+
+    evictIdleBuckets(ticker.read());
+  }
+
+  /**
+   * Start watching the quota configuration file, reloading it whenever it changes.  The file is watched from a
+   * background daemon thread until this object is closed.
+   *
+   * @throws IOException If the file can't be watched.
+   */
+  public synchronized void watch() throws IOException
+  {
+    checkState(watchService == null, "Already watching %s", file);
+
+    final Path directory = file.toAbsolutePath().getParent();
+    final WatchService watchService = FileSystems.getDefault().newWatchService();
+    directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+    this.watchService = watchService;
+
+    Thread thread = new Thread(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        try {
+          while (true) {
+            // Writing a file usually generates several events, so wait for them all to arrive before reloading rather
+            // than risk reading a partially written file.
+            WatchKey key = watchService.take();
+            boolean changed = false;
+            while (key != null) {
+              for (WatchEvent<?> event : key.pollEvents()) {
+                changed |= file.getFileName().equals(event.context());
+              }
+              key.reset();
+
+              key = watchService.poll(RELOAD_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+            }
+
+            if (changed) {
+              reloadQuietly();
+            }
+          }
+        } catch (ClosedWatchServiceException e) {
+          // We've been closed.
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }, "quota-buckets-watcher");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /** Stop watching the quota configuration file. */
+  @Override
+  public synchronized void close() throws IOException
+  {
+    if (watchService != null) {
+      watchService.close();
+    }
+  }
+
+  /** Returns the number of keys that currently have a bucket or are known to match no rule. */
+  int getNumKeys()
+  {
+    return buckets.size();
+  }
+
+  private static TokenBucket newBucket(TokenBucketConfig config)
+  {
+    // Hold the config's lock so that its capacity can't shrink below the bucket's initial tokens.
+    synchronized (config) {
+      return TokenBuckets.builder()
+          .withConfig(config)
+          .withInitialTokens(config.getCapacity())
+          .build();
+    }
+  }
+
+  /** Evict the buckets that have refilled completely since their key was last looked up, and forget misses. */
+  private void evictIdleBuckets(long now)
+  {
+    if (!evicting.compareAndSet(false, true)) {
+      return;
+    }
+
+    try {
+      QuotaRules rules = state.rules;
+      for (Map.Entry<String, Entry> bucket : buckets.entrySet()) {
+        Entry entry = bucket.getValue();
+        QuotaRules.Rule rule = (entry.pattern == null) ? null : rules.getRules().get(entry.pattern);
+
+        long lastAccessTime = entry.lastAccessTime;
+        if (rule != null && now - lastAccessTime < getTimeToFill(rule)) {
+          continue;
+        }
+
+        // If the key was looked up while we were evicting it then put it back, its bucket may have been used.
+        if (buckets.remove(bucket.getKey(), entry) && entry.bucket != null && entry.lastAccessTime != lastAccessTime) {
+          buckets.putIfAbsent(bucket.getKey(), entry);
+        }
+      }
+
+      evictionSize.set(Math.max(MIN_EVICTION_SIZE, 2 * buckets.size()));
+    } finally {
+      evicting.set(false);
+    }
+  }
+
+  /** Returns how long in nanoseconds it takes an empty bucket of a rule to refill completely. */
+  private static long getTimeToFill(QuotaRules.Rule rule)
+  {
+    long numPeriods = (rule.capacity + rule.refillTokens - 1) / rule.refillTokens;
+    long periodInNanos = rule.unit.toNanos(rule.period);
+
+    return (numPeriods > Long.MAX_VALUE / periodInNanos) ? Long.MAX_VALUE : numPeriods * periodInNanos;
+  }
+
+  private void reloadQuietly()
+  {
+    try {
+      reload();
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Unable to reload " + file + ", keeping the previous quotas", e);
+    } catch (IllegalArgumentException e) {
+      LOG.log(Level.WARNING, "Invalid quotas in " + file + ", keeping the previous quotas", e);
+    }
+  }
+
+  /** The rules currently in effect along with the config of each of their patterns, replaced as a whole on reload. */
+  private static final class State
+  {
+    private final QuotaRules rules;
+    private final ImmutableMap<String, TokenBucketConfig> configs;
+
+    State(QuotaRules rules, ImmutableMap<String, TokenBucketConfig> configs)
+    {
+      this.rules = rules;
+      this.configs = configs;
+    }
+  }
+
+  /**
+   * A key's token bucket along with the pattern of the rule it was built from, or for a key that matched no rule a
+   * {@code null} bucket along with the rules it didn't match.
+   */
+  private static final class Entry
+  {
+    private final QuotaRules rules;
+    private final String pattern;
+    private final TokenBucket bucket;
+    private volatile long lastAccessTime;
+
+    Entry(QuotaRules rules, String pattern, TokenBucket bucket, long lastAccessTime)
+    {
+      this.rules = rules;
+      this.pattern = pattern;
+      this.bucket = bucket;
+      this.lastAccessTime = lastAccessTime;
+    }
+  }
+}
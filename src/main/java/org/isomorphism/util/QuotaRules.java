@@ -0,0 +1,169 @@
+/*
+ * Copyright 2012-2014 Brandon Beck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.isomorphism.util;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableMap;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * An immutable set of quota rules parsed from a quota configuration file, along with a precompiled matcher from keys
+ * to rules.  Each non-blank line of the file that isn't a {@code #} comment holds a rule of the form:
+ * <pre>
+ *   &lt;pattern&gt; &lt;capacity&gt; &lt;refill tokens&gt; &lt;period&gt; &lt;unit&gt;
+ * </pre>
+ * For example {@code tenant-* 100 10 1 SECONDS}.  A pattern either matches a key exactly, or if it ends with a
+ * {@code *} matches every key that starts with the rest of it.  A key that matches a pattern exactly uses that rule,
+ * otherwise it uses the rule with the longest matching prefix.  Exact patterns are held in a hash map and prefix
+ * patterns in a trie, so matching a key takes time proportional to its length regardless of the number of rules.
+ */
+final class QuotaRules
+{
+  private static final Splitter FIELD_SPLITTER = Splitter.on(' ').trimResults().omitEmptyStrings();
+
+  private final ImmutableMap<String, Rule> rules;
+  private final Map<String, Rule> exact = new HashMap<String, Rule>();
+  private final Node prefixes = new Node();
+
+  private QuotaRules(ImmutableMap<String, Rule> rules)
+  {
+    this.rules = rules;
+
+    for (Rule rule : rules.values()) {
+      if (!rule.pattern.endsWith("*")) {
+        exact.put(rule.pattern, rule);
+        continue;
+      }
+
+      Node node = prefixes;
+      String prefix = rule.pattern.substring(0, rule.pattern.length() - 1);
+      for (int i = 0; i < prefix.length(); i++) {
+        Node child = node.children.get(prefix.charAt(i));
+        if (child == null) {
+          child = new Node();
+          node.children.put(prefix.charAt(i), child);
+        }
+        node = child;
+      }
+      node.rule = rule;
+    }
+  }
+
+  /**
+   * Parse the lines of a quota configuration file.
+   *
+   * @throws IllegalArgumentException If a line isn't a valid rule or a pattern appears more than once.
+   */
+  static QuotaRules parse(List<String> lines)
+  {
+    Map<String, Rule> rules = new HashMap<String, Rule>();
+
+    for (int i = 0; i < lines.size(); i++) {
+      String line = lines.get(i).replace('\t', ' ').trim();
+      if (line.isEmpty() || line.startsWith("#")) {
+        continue;
+      }
+
+      List<String> fields = FIELD_SPLITTER.splitToList(line);
+      checkArgument(fields.size() == 5, "Line %s: expected <pattern> <capacity> <refill tokens> <period> <unit>",
+          i + 1);
+
+      String pattern = fields.get(0);
+      checkArgument(pattern.indexOf('*') == -1 || pattern.indexOf('*') == pattern.length() - 1,
+          "Line %s: a * may only appear at the end of a pattern", i + 1);
+      checkArgument(!rules.containsKey(pattern), "Line %s: duplicate pattern %s", i + 1, pattern);
+
+      try {
+        rules.put(pattern, new Rule(pattern, Long.parseLong(fields.get(1)), Long.parseLong(fields.get(2)),
+            Long.parseLong(fields.get(3)), TimeUnit.valueOf(fields.get(4))));
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException("Line " + (i + 1) + ": " + e.getMessage(), e);
+      }
+    }
+
+    return new QuotaRules(ImmutableMap.copyOf(rules));
+  }
+
+  /** Returns every rule, keyed by pattern. */
+  ImmutableMap<String, Rule> getRules()
+  {
+    return rules;
+  }
+
+  /** Returns the rule that applies to a key, or {@code null} if no rule matches it. */
+  Rule match(String key)
+  {
+    Rule rule = exact.get(key);
+    if (rule != null) {
+      return rule;
+    }
+
+    // Walk down the trie as far as the key allows, remembering the deepest, and therefore longest, prefix rule.
+    Node node = prefixes;
+    rule = node.rule;
+    for (int i = 0; i < key.length() && node != null; i++) {
+      node = node.children.get(key.charAt(i));
+      if (node != null && node.rule != null) {
+        rule = node.rule;
+      }
+    }
+
+    return rule;
+  }
+
+  /** The limits for the keys that match a pattern. */
+  static final class Rule
+  {
+    final String pattern;
+    final long capacity;
+    final long refillTokens;
+    final long period;
+    final TimeUnit unit;
+
+    Rule(String pattern, long capacity, long refillTokens, long period, TimeUnit unit)
+    {
+      checkArgument(capacity > 0, "Must specify a positive number of tokens");
+      checkArgument(refillTokens > 0, "Must specify a positive number of refill tokens");
+      checkArgument(period > 0, "Must specify a positive period");
+
+      this.pattern = pattern;
+      this.capacity = capacity;
+      this.refillTokens = refillTokens;
+      this.period = period;
+      this.unit = unit;
+    }
+
+    /** Returns whether another rule imposes the same limits as this one. */
+    boolean hasSameLimits(Rule other)
+    {
+      return capacity == other.capacity
+          && refillTokens == other.refillTokens
+          && unit.toNanos(period) == other.unit.toNanos(other.period);
+    }
+  }
+
+  private static final class Node
+  {
+    private final Map<Character, Node> children = new HashMap<Character, Node>();
+    private Rule rule;
+  }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2012-2014 Brandon Beck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.isomorphism.util;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks an interface method as rate limited by a named token bucket.  The annotation takes effect when a proxy for
+ * the interface is created with {@link RateLimitedProxy}, which resolves the name to a bucket.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface RateLimited
+{
+  /** The name of the token bucket that calls to the method consume tokens from. */
+  String value();
+
+  /** The number of tokens each call to the method costs. */
+  long tokens() default 1;
+
+  /** What to do when the token bucket doesn't have enough tokens for a call. */
+  Mode mode() default Mode.BLOCK;
+
+  /** The ways a rate limited method can wait for tokens. */
+  enum Mode
+  {
+    /** Block the calling thread until the tokens are available. */
+    BLOCK,
+
+    /** Don't wait, throw a {@link RateLimitExceededException} if the tokens aren't available. */
+    REJECT,
+
+    /**
+     * Return immediately and make the call once the tokens are available.  The method must return a
+     * {@code ListenableFuture}, the proxy returns a future that completes with the result of the eventual call.
+     */
+    ASYNC
+  }
+}
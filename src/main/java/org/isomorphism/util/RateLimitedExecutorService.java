@@ -0,0 +1,357 @@
+/*
+ * Copyright 2012-2014 Brandon Beck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.isomorphism.util;
+
+import com.google.common.util.concurrent.AbstractFuture;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * An executor service that rate limits the tasks submitted to it using a token bucket.  Submitted tasks are held in a
+ * bounded FIFO queue and are only handed to the delegate executor once the token bucket has granted the tokens that
+ * the task costs.  No thread ever blocks waiting for tokens, instead when the task at the head of the queue can't be
+ * afforded a dispatch is scheduled on the delegate for when the bucket's refill strategy says the next group of tokens
+ * will be added.
+ * <p/>
+ * The delegate is owned by this executor service, shutting this executor service down will shut the delegate down
+ * once all of the queued tasks have been dispatched to it.
+ * <p/>
+ * A queued task that can't be dispatched, because the token bucket refuses its tokens outright or the delegate
+ * rejects it, is failed on its own without holding up the tasks behind it.  Its tokens are given back to the bucket,
+ * and if it was submitted to this executor service then its future fails with the reason, otherwise the failure is
+ * logged.  A task that is some other kind of future can't be failed with a reason, so it is cancelled as well.
+ */
+public class RateLimitedExecutorService extends AbstractExecutorService
+{
+  private static final Logger LOG = Logger.getLogger(RateLimitedExecutorService.class.getName());
+
+  /** The delay to use between dispatch attempts when the refill strategy can't tell us when tokens will be added. */
+  private static final long DEFAULT_DISPATCH_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  /** The smallest delay between dispatch attempts, this prevents spinning on a refill strategy that returns 0. */
+  private static final long MIN_DISPATCH_DELAY_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+  private final TokenBucket bucket;
+  private final ScheduledExecutorService delegate;
+  private final int maxQueueSize;
+  private final Queue<Task> queue = new ArrayDeque<Task>();
+  private ScheduledFuture<?> scheduledDispatch = null;
+  private boolean shutdown = false;
+
+  private final Runnable dispatcher = new Runnable()
+  {
+    @Override
+    public void run()
+    {
+      synchronized (RateLimitedExecutorService.this) {
+        scheduledDispatch = null;
+        dispatch();
+      }
+    }
+  };
+
+  /**
+   * Create a RateLimitedExecutorService.
+   *
+   * @param bucket       The token bucket that tasks consume tokens from before they are run.
+   * @param delegate     The executor that runs tasks once they have been granted tokens.
+   * @param maxQueueSize The maximum number of tasks that may be waiting for tokens at any one time.
+   */
+  public RateLimitedExecutorService(TokenBucket bucket, ScheduledExecutorService delegate, int maxQueueSize)
+  {
+    checkArgument(maxQueueSize > 0, "Must specify a positive queue size");
+
+    this.bucket = checkNotNull(bucket);
+    this.delegate = checkNotNull(delegate);
+    this.maxQueueSize = maxQueueSize;
+  }
+
+  /**
+   * Execute a task that costs a single token.
+   *
+   * @param command The task to execute.
+   * @throws RejectedExecutionException If the queue is full or this executor service has been shut down.
+   */
+  @Override
+  public void execute(Runnable command)
+  {
+    execute(command, 1);
+  }
+
+  /**
+   * Execute a task that costs the specified number of tokens.  The task will be run by the delegate executor once all
+   * of the tasks ahead of it have been run and the token bucket has granted its tokens.
+   *
+   * @param command   The task to execute.
+   * @param numTokens The number of tokens the task costs, must be a positive number no larger than the capacity of
+   *                  the bucket.
+   * @throws RejectedExecutionException If the queue is full or this executor service has been shut down.
+   */
+  public synchronized void execute(Runnable command, long numTokens)
+  {
+    checkNotNull(command);
+    checkArgument(numTokens > 0, "Number of tokens to consume must be positive");
+    checkArgument(numTokens <= bucket.getCapacity(),
+        "Number of tokens to consume must be less than the capacity of the bucket.");
+
+    if (shutdown) {
+      throw new RejectedExecutionException("Executor service has been shut down");
+    }
+
+    if (queue.size() >= maxQueueSize) {
+      throw new RejectedExecutionException("Too many tasks are waiting for tokens");
+    }
+
+    queue.add(new Task(command, numTokens));
+    dispatch();
+  }
+
+  /**
+   * Submit a task that costs the specified number of tokens.
+   *
+   * @see #execute(Runnable, long)
+   */
+  public <T> ListenableFuture<T> submit(Callable<T> task, long numTokens)
+  {
+    TaskFuture<T> future = new TaskFuture<T>(task);
+    execute(future, numTokens);
+    return future;
+  }
+
+  /**
+   * Submit a task that costs the specified number of tokens.
+   *
+   * @see #execute(Runnable, long)
+   */
+  public ListenableFuture<?> submit(Runnable task, long numTokens)
+  {
+    TaskFuture<Void> future = new TaskFuture<Void>(task, null);
+    execute(future, numTokens);
+    return future;
+  }
+
+  /**
+   * Returns the number of tasks that are currently waiting for tokens.
+   *
+   * @return The number of tasks that are currently waiting for tokens.
+   */
+  public synchronized int getQueueSize()
+  {
+    return queue.size();
+  }
+
+  @Override
+  protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable)
+  {
+    return new TaskFuture<T>(callable);
+  }
+
+  @Override
+  protected <T> RunnableFuture<T> newTaskFor(Runnable runnable, T value)
+  {
+    return new TaskFuture<T>(runnable, value);
+  }
+
+  @Override
+  public synchronized void shutdown()
+  {
+    shutdown = true;
+    if (queue.isEmpty()) {
+      delegate.shutdown();
+    }
+  }
+
+  @Override
+  public synchronized List<Runnable> shutdownNow()
+  {
+    shutdown = true;
+
+    List<Runnable> tasks = new ArrayList<Runnable>();
+    for (Task task : queue) {
+      tasks.add(task.command);
+    }
+    queue.clear();
+
+    // A cancelled dispatch may still be sitting in the delegate's queue, but it isn't one of the caller's tasks.
+    if (scheduledDispatch != null) {
+      scheduledDispatch.cancel(false);
+    }
+    for (Runnable task : delegate.shutdownNow()) {
+      if (task != scheduledDispatch) {
+        tasks.add(task);
+      }
+    }
+    scheduledDispatch = null;
+
+    return tasks;
+  }
+
+  @Override
+  public synchronized boolean isShutdown()
+  {
+    return shutdown;
+  }
+
+  @Override
+  public synchronized boolean isTerminated()
+  {
+    return shutdown && queue.isEmpty() && delegate.isTerminated();
+  }
+
+  @Override
+  public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException
+  {
+    return delegate.awaitTermination(timeout, unit);
+  }
+
+  /**
+   * Hand as many tasks as the token bucket will allow to the delegate, and if any tasks remain make sure that another
+   * dispatch will happen once more tokens have been added to the bucket.  Must be called while holding the lock.
+   */
+  private void dispatch()
+  {
+    while (!queue.isEmpty()) {
+      Task task = queue.peek();
+      try {
+        if (!bucket.tryConsume(task.numTokens)) {
+          break;
+        }
+      } catch (IllegalArgumentException e) {
+        // The bucket will never grant this task's tokens, for example because its capacity has shrunk.
+        queue.remove();
+        fail(task, e);
+        continue;
+      }
+
+      queue.remove();
+      try {
+        delegate.execute(task.command);
+      } catch (RejectedExecutionException e) {
+        bucket.refill(task.numTokens);
+        fail(task, e);
+      }
+    }
+
+    if (queue.isEmpty()) {
+      if (shutdown) {
+        delegate.shutdown();
+      }
+      return;
+    }
+
+    if (scheduledDispatch == null) {
+      try {
+        scheduledDispatch = delegate.schedule(dispatcher, getDispatchDelayInNanos(), TimeUnit.NANOSECONDS);
+      } catch (RejectedExecutionException e) {
+        // Without the delegate nothing that's queued will ever run.
+        while (!queue.isEmpty()) {
+          fail(queue.remove(), e);
+        }
+      }
+    }
+  }
+
+  /** Fail a task that won't be run, letting whoever submitted it know if we can. */
+  private void fail(Task task, RuntimeException cause)
+  {
+    if (task.command instanceof TaskFuture) {
+      ((TaskFuture<?>) task.command).fail(cause);
+    } else if (task.command instanceof Future) {
+      ((Future<?>) task.command).cancel(false);
+      LOG.log(Level.WARNING, "Cancelled task " + task.command, cause);
+    } else {
+      LOG.log(Level.WARNING, "Unable to run task " + task.command, cause);
+    }
+  }
+
+  private long getDispatchDelayInNanos()
+  {
+    long delay;
+    try {
+      delay = bucket.getDurationUntilNextRefill(TimeUnit.NANOSECONDS);
+    } catch (UnsupportedOperationException e) {
+      delay = DEFAULT_DISPATCH_DELAY_NANOS;
+    }
+
+    return Math.max(MIN_DISPATCH_DELAY_NANOS, delay);
+  }
+
+  /** A listenable future for a submitted task that can be failed without running it. */
+  private static final class TaskFuture<T> extends AbstractFuture<T> implements RunnableFuture<T>
+  {
+    private final Callable<T> callable;
+
+    TaskFuture(Callable<T> callable)
+    {
+      this.callable = callable;
+    }
+
+    TaskFuture(Runnable runnable, T value)
+    {
+      this(Executors.callable(runnable, value));
+    }
+
+    @Override
+    public void run()
+    {
+      // A task that was cancelled or failed while it was waiting for tokens is never run.
+      if (isDone()) {
+        return;
+      }
+
+      try {
+        set(callable.call());
+      } catch (Throwable t) {
+        setException(t);
+      }
+    }
+
+    void fail(Throwable cause)
+    {
+      setException(cause);
+    }
+  }
+
+  private static final class Task
+  {
+    private final Runnable command;
+    private final long numTokens;
+
+    Task(Runnable command, long numTokens)
+    {
+      this.command = command;
+      this.numTokens = numTokens;
+    }
+  }
+}
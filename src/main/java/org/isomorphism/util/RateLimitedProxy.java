@@ -0,0 +1,251 @@
+/*
+ * Copyright 2012-2014 Brandon Beck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.isomorphism.util;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.reflect.Reflection;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Creates proxies that rate limit the methods of an interface with token buckets.  Each method is bound to a bucket,
+ * a number of tokens per call and a {@link RateLimited.Mode}, either by annotating it with {@link RateLimited} and
+ * naming the bucket with {@link Builder#withBucket(String, TokenBucket)}, or explicitly by method name with
+ * {@link Builder#withMethod(String, TokenBucket, long, RateLimited.Mode)}.  Methods that aren't bound to a bucket are
+ * passed straight through to the target.
+ * <p/>
+ * All of the bindings are resolved when the proxy is built, so a call through the proxy only costs a map lookup on top
+ * of the reflective call and the token bucket itself.
+ */
+public final class RateLimitedProxy
+{
+  private RateLimitedProxy() {}
+
+  /** Create a new builder for proxies of the specified interface. */
+  public static <T> Builder<T> builder(Class<T> type)
+  {
+    return new Builder<T>(type);
+  }
+
+  public static class Builder<T>
+  {
+    private final Class<T> type;
+    private final Map<String, TokenBucket> buckets = new HashMap<String, TokenBucket>();
+    private final Map<String, Binding> methods = new HashMap<String, Binding>();
+    private ScheduledExecutorService executor = null;
+    private int maxQueueSize = 0;
+
+    private Builder(Class<T> type)
+    {
+      checkArgument(type.isInterface(), "Can only proxy interfaces");
+      this.type = type;
+    }
+
+    /** Name a token bucket so that methods annotated with {@link RateLimited} can refer to it. */
+    public Builder<T> withBucket(String name, TokenBucket bucket)
+    {
+      buckets.put(checkNotNull(name), checkNotNull(bucket));
+      return this;
+    }
+
+    /**
+     * Rate limit every method with the specified name.  This takes precedence over any {@link RateLimited} annotation
+     * on the method.  Building the proxy fails if the interface has no method with the name.
+     */
+    public Builder<T> withMethod(String methodName, TokenBucket bucket, long numTokens, RateLimited.Mode mode)
+    {
+      checkArgument(numTokens > 0, "Must specify a positive number of tokens");
+      methods.put(checkNotNull(methodName), new Binding(checkNotNull(bucket), numTokens, checkNotNull(mode)));
+      return this;
+    }
+
+    /**
+     * Use an executor to make the calls of {@link RateLimited.Mode#ASYNC} methods.  A rate limited executor service is
+     * created on top of it for each token bucket, holding at most the specified number of calls waiting for tokens.
+     */
+    public Builder<T> withExecutor(ScheduledExecutorService executor, int maxQueueSize)
+    {
+      checkArgument(maxQueueSize > 0, "Must specify a positive queue size");
+      this.executor = checkNotNull(executor);
+      this.maxQueueSize = maxQueueSize;
+      return this;
+    }
+
+    /** Build a proxy that rate limits calls to the target. */
+    public T build(T target)
+    {
+      checkNotNull(target);
+
+      Map<TokenBucket, RateLimitedExecutorService> executors =
+          new IdentityHashMap<TokenBucket, RateLimitedExecutorService>();
+      ImmutableMap.Builder<Method, Binding> bindings = ImmutableMap.builder();
+      Set<String> unmatched = new HashSet<String>(methods.keySet());
+
+      for (Method method : type.getMethods()) {
+        unmatched.remove(method.getName());
+
+        Binding binding = getBinding(method);
+        if (binding == null) {
+          continue;
+        }
+
+        if (binding.mode == RateLimited.Mode.ASYNC) {
+          checkArgument(method.getReturnType() == ListenableFuture.class,
+              "Asynchronous method %s must return a ListenableFuture", method.getName());
+          checkArgument(executor != null, "Must specify an executor for asynchronous method %s", method.getName());
+
+          RateLimitedExecutorService bucketExecutor = executors.get(binding.bucket);
+          if (bucketExecutor == null) {
+            bucketExecutor = new RateLimitedExecutorService(binding.bucket, executor, maxQueueSize);
+            executors.put(binding.bucket, bucketExecutor);
+          }
+          binding = binding.withExecutor(bucketExecutor);
+        }
+
+        bindings.put(method, binding);
+      }
+
+      // A misspelled method name would otherwise quietly leave the method it was meant for unlimited.
+      checkArgument(unmatched.isEmpty(), "No methods named %s in %s", unmatched, type.getName());
+
+      return Reflection.newProxy(type, new Handler(target, bindings.build()));
+    }
+
+    private Binding getBinding(Method method)
+    {
+      Binding binding = methods.get(method.getName());
+      if (binding != null) {
+        return binding;
+      }
+
+      RateLimited annotation = method.getAnnotation(RateLimited.class);
+      if (annotation == null) {
+        return null;
+      }
+
+      TokenBucket bucket = buckets.get(annotation.value());
+      checkArgument(bucket != null, "No bucket named %s for method %s", annotation.value(), method.getName());
+      checkArgument(annotation.tokens() > 0, "Must specify a positive number of tokens for method %s",
+          method.getName());
+
+      return new Binding(bucket, annotation.tokens(), annotation.mode());
+    }
+  }
+
+  /** How a single method is rate limited. */
+  private static final class Binding
+  {
+    private final TokenBucket bucket;
+    private final long numTokens;
+    private final RateLimited.Mode mode;
+    private final RateLimitedExecutorService executor;
+
+    Binding(TokenBucket bucket, long numTokens, RateLimited.Mode mode)
+    {
+      this(bucket, numTokens, mode, null);
+    }
+
+    private Binding(TokenBucket bucket, long numTokens, RateLimited.Mode mode, RateLimitedExecutorService executor)
+    {
+      this.bucket = bucket;
+      this.numTokens = numTokens;
+      this.mode = mode;
+      this.executor = executor;
+    }
+
+    Binding withExecutor(RateLimitedExecutorService executor)
+    {
+      return new Binding(bucket, numTokens, mode, executor);
+    }
+  }
+
+  private static final class Handler implements InvocationHandler
+  {
+    private final Object target;
+    private final ImmutableMap<Method, Binding> bindings;
+
+    Handler(Object target, ImmutableMap<Method, Binding> bindings)
+    {
+      this.target = target;
+      this.bindings = bindings;
+    }
+
+    @Override
+    public Object invoke(Object proxy, final Method method, final Object[] args) throws Throwable
+    {
+      Binding binding = bindings.get(method);
+      if (binding == null) {
+        return call(method, args);
+      }
+
+      switch (binding.mode) {
+        case BLOCK:
+          binding.bucket.consume(binding.numTokens);
+          return call(method, args);
+
+        case REJECT:
+          if (!binding.bucket.tryConsume(binding.numTokens)) {
+            throw new RateLimitExceededException("Rate limit exceeded calling " + method.getName());
+          }
+          return call(method, args);
+
+        case ASYNC:
+          // Submitted rather than executed so that a call the bucket refuses fails with the reason.
+          ListenableFuture<ListenableFuture<Object>> task = binding.executor.submit(
+              new Callable<ListenableFuture<Object>>()
+              {
+                @Override
+                @SuppressWarnings("unchecked")
+                public ListenableFuture<Object> call() throws Exception
+                {
+                  try {
+                    return (ListenableFuture<Object>) method.invoke(target, args);
+                  } catch (InvocationTargetException e) {
+                    return Futures.immediateFailedFuture(e.getCause());
+                  }
+                }
+              }, binding.numTokens);
+          return Futures.dereference(task);
+
+        default:
+          throw new AssertionError(binding.mode);
+      }
+    }
+
+    private Object call(Method method, Object[] args) throws Throwable
+    {
+      try {
+        return method.invoke(target, args);
+      } catch (InvocationTargetException e) {
+        throw e.getCause();
+      }
+    }
+  }
+}
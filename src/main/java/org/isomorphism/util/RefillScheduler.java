@@ -0,0 +1,142 @@
+/*
+ * Copyright 2012-2014 Brandon Beck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.isomorphism.util;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.MapMaker;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Refills a group of token buckets from a single background thread.  Token buckets normally refill lazily, consulting
+ * their refill strategy, and therefore reading the clock, on every consume.  Buckets built with
+ * {@link TokenBuckets.Builder#withScheduledRefillStrategy(RefillScheduler, long)} instead have tokens pushed into them
+ * by this scheduler once every period, which leaves nothing but the decrement on their consume path.  This is most
+ * useful when a large number of buckets share the same refill period.
+ * <p/>
+ * Buckets are only weakly referenced by the scheduler and stop being refilled once they are no longer in use.
+ */
+public class RefillScheduler
+{
+  private final Ticker ticker;
+  private final long periodDurationInNanos;
+  private final ConcurrentMap<TokenBucketImpl, Long> buckets = new MapMaker().weakKeys().makeMap();
+  private final ScheduledExecutorService executor;
+  private volatile long nextRefillTime;
+
+  /** The refill strategy shared by every bucket of this scheduler, tokens are never added lazily. */
+  private final TokenBucket.RefillStrategy refillStrategy = new TokenBucket.RefillStrategy()
+  {
+    @Override
+    public long refill()
+    {
+      return 0;
+    }
+
+    @Override
+    public long getDurationUntilNextRefill(TimeUnit unit)
+    {
+      return unit.convert(Math.max(0, nextRefillTime - ticker.read()), TimeUnit.NANOSECONDS);
+    }
+  };
+
+  /**
+   * Create a RefillScheduler and start its background thread.
+   *
+   * @param period How often to refill the buckets.
+   * @param unit   Unit for period.
+   */
+  public RefillScheduler(long period, TimeUnit unit)
+  {
+    this(Ticker.systemTicker(), period, unit, Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setNameFormat("token-bucket-refill-%d").setDaemon(true).build()));
+  }
+
+  /**
+   * Create a RefillScheduler.  If an executor is provided then it will be used to refill the buckets every period,
+   * otherwise the buckets are only refilled when {@link #refillAll()} is called.
+   */
+  RefillScheduler(Ticker ticker, long period, TimeUnit unit, ScheduledExecutorService executor)
+  {
+    checkArgument(period > 0, "Must specify a positive period");
+
+    this.ticker = checkNotNull(ticker);
+    this.periodDurationInNanos = unit.toNanos(period);
+    this.executor = executor;
+    this.nextRefillTime = ticker.read() + periodDurationInNanos;
+
+    if (executor != null) {
+      executor.scheduleAtFixedRate(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          refillAll();
+        }
+      }, periodDurationInNanos, periodDurationInNanos, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  /** Returns the number of token buckets that are currently being refilled by this scheduler. */
+  public int getNumBuckets()
+  {
+    return buckets.size();
+  }
+
+  /** Stop refilling buckets.  Buckets of this scheduler will no longer receive any tokens. */
+  public void shutdown()
+  {
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+  }
+
+  /** Returns the refill strategy that buckets of this scheduler must be built with. */
+  TokenBucket.RefillStrategy getRefillStrategy()
+  {
+    return refillStrategy;
+  }
+
+  /**
+   * Start refilling a bucket.
+   *
+   * @param bucket             The bucket to refill, must use this scheduler's refill strategy.
+   * @param numTokensPerPeriod The number of tokens to add to the bucket every period.
+   */
+  void register(TokenBucketImpl bucket, long numTokensPerPeriod)
+  {
+    checkArgument(numTokensPerPeriod > 0, "Must specify a positive number of refill tokens");
+    buckets.put(bucket, numTokensPerPeriod);
+  }
+
+  /** Add one period's worth of tokens to every bucket of this scheduler. */
+  void refillAll()
+  {
+    nextRefillTime = ticker.read() + periodDurationInNanos;
+
+    for (Map.Entry<TokenBucketImpl, Long> entry : buckets.entrySet()) {
+      entry.getKey().scheduledRefill(entry.getValue());
+    }
+  }
+}
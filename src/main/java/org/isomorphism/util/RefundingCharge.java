@@ -0,0 +1,61 @@
+/*
+ * Copyright 2012-2014 Brandon Beck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.isomorphism.util;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * A charge against a token bucket that only has the methods of the {@link TokenBucket} interface to settle it with,
+ * used by the default implementations of {@link TokenBucket#tryCharge(long)} and {@link TokenBucket#charge(long)}.
+ * Such a bucket can't go into debt, so a refund is refilled and an extra cost takes as many of the tokens that are in
+ * the bucket as it can.
+ */
+final class RefundingCharge implements TokenBucket.Charge
+{
+  private final TokenBucket bucket;
+  private final long estimatedTokens;
+  private boolean settled = false;
+
+  RefundingCharge(TokenBucket bucket, long estimatedTokens)
+  {
+    this.bucket = bucket;
+    this.estimatedTokens = estimatedTokens;
+  }
+
+  @Override
+  public long getEstimatedTokens()
+  {
+    return estimatedTokens;
+  }
+
+  @Override
+  public synchronized void settle(long actualTokens)
+  {
+    checkArgument(actualTokens >= 0, "Number of tokens to settle must not be negative");
+    checkState(!settled, "Charge has already been settled");
+    settled = true;
+
+    if (actualTokens < estimatedTokens) {
+      bucket.refill(estimatedTokens - actualTokens);
+    } else if (actualTokens > estimatedTokens) {
+      long numTokens = Math.min(actualTokens - estimatedTokens, bucket.getNumTokens());
+      if (numTokens > 0) {
+        bucket.tryConsume(numTokens);
+      }
+    }
+  }
+}
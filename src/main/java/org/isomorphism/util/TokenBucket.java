@@ -17,6 +17,8 @@ package org.isomorphism.util;
 
 import java.util.concurrent.TimeUnit;
 
+import static com.google.common.base.Preconditions.checkArgument;
+
 /**
  * A token bucket is used for rate limiting access to a portion of code.
  *
@@ -67,6 +69,23 @@ public interface TokenBucket
    */
   boolean tryConsume(long numTokens);
 
+  /**
+   * Attempt to consume a specified number of tokens from the bucket at a given priority.  Tokens that are reserved for
+   * higher priorities will not be consumed.  If the tokens were consumed then {@code true} is returned, otherwise
+   * {@code false} is returned.  Calling {@link #tryConsume(long)} is the same as consuming at priority 0.
+   * <p/>
+   * The default implementation is for buckets without priorities, it only accepts priority 0.
+   *
+   * @param numTokens The number of tokens to consume from the bucket, must be a positive number.
+   * @param priority  The priority of the consumer, 0 is the lowest priority.
+   * @return {@code true} if the tokens were consumed, {@code false} otherwise.
+   */
+  default boolean tryConsume(long numTokens, int priority)
+  {
+    checkArgument(priority == 0, "Priority must be one of the bucket's priorities");
+    return tryConsume(numTokens);
+  }
+
   /**
    * Consume a single token from the bucket.  If no token is currently available then this method will block until a
    * token becomes available.
@@ -81,6 +100,106 @@ public interface TokenBucket
    */
   void consume(long numTokens);
 
+  /**
+   * Consumes multiple tokens from the bucket at a given priority.  If enough tokens are not currently available then
+   * this method will block until they are.  Blocked consumers of a higher priority are always given tokens before
+   * blocked consumers of a lower priority.
+   * <p/>
+   * The default implementation is for buckets without priorities, it only accepts priority 0.
+   *
+   * @param numTokens The number of tokens to consume from the bucket, must be a positive number.
+   * @param priority  The priority of the consumer, 0 is the lowest priority.
+   */
+  default void consume(long numTokens, int priority)
+  {
+    checkArgument(priority == 0, "Priority must be one of the bucket's priorities");
+    consume(numTokens);
+  }
+
+  /**
+   * Attempt to consume a specified number of tokens from the bucket, waiting at most the specified amount of time for
+   * them to become available.  If the predicted wait, as returned by {@link #getEstimatedWait(long, TimeUnit)}, is
+   * longer than the timeout then {@code false} is returned immediately rather than waiting for a timeout that is
+   * bound to happen.
+   * <p/>
+   * The default implementation is for buckets that can't predict waits, it keeps trying to consume the tokens, yielding
+   * the thread between attempts, until they are consumed or the timeout has passed.
+   *
+   * @param numTokens The number of tokens to consume from the bucket, must be a positive number.
+   * @param timeout   The maximum amount of time to wait for the tokens.
+   * @param unit      The time unit of the timeout.
+   * @return {@code true} if the tokens were consumed, {@code false} otherwise.
+   */
+  default boolean tryConsume(long numTokens, long timeout, TimeUnit unit)
+  {
+    checkArgument(timeout >= 0, "Timeout must be a non-negative number");
+
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    while (!tryConsume(numTokens)) {
+      if (System.nanoTime() - deadline >= 0) {
+        return false;
+      }
+
+      Thread.yield();
+    }
+
+    return true;
+  }
+
+  /**
+   * Returns a prediction of how long a consumer would have to wait before the specified number of tokens could be
+   * consumed from the bucket, or 0 if they could be consumed right away.  The prediction accounts for the tokens that
+   * blocked consumers are already waiting for, and is suitable as a retry-after value for a rejected request.
+   * <p/>
+   * The default implementation is for buckets that can't predict waits, it always throws
+   * {@code UnsupportedOperationException}.
+   *
+   * @param numTokens The number of tokens to consume from the bucket, must be a positive number.
+   * @param unit      The time unit to express the return value in.
+   * @return The predicted wait for the tokens.
+   * @throws UnsupportedOperationException If the refill strategy can't say when tokens will next be added.
+   */
+  default long getEstimatedWait(long numTokens, TimeUnit unit) throws UnsupportedOperationException
+  {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Attempt to consume an estimate of the number of tokens some work will cost.  If the tokens were consumed then a
+   * charge is returned which must be settled with the real cost once it is known, otherwise {@code null} is returned.
+   * <p/>
+   * The default implementation is for buckets that can't go into debt.  Settling its charge for less than the estimate
+   * refills the difference, and settling for more consumes as much of the difference as the bucket holds.
+   *
+   * @param estimatedTokens The estimated number of tokens, must be a positive number.
+   * @return The charge for the estimated tokens, or {@code null} if they weren't consumed.
+   */
+  default Charge tryCharge(long estimatedTokens)
+  {
+    if (!tryConsume(estimatedTokens)) {
+      return null;
+    }
+
+    return new RefundingCharge(this, estimatedTokens);
+  }
+
+  /**
+   * Consume an estimate of the number of tokens some work will cost.  If enough tokens are not currently available
+   * then this method will block until they are.  The returned charge must be settled with the real cost once it is
+   * known.
+   * <p/>
+   * The default implementation is for buckets that can't go into debt, its charge is settled the same way as that of
+   * {@link #tryCharge(long)}.
+   *
+   * @param estimatedTokens The estimated number of tokens, must be a positive number.
+   * @return The charge for the estimated tokens.
+   */
+  default Charge charge(long estimatedTokens)
+  {
+    consume(estimatedTokens);
+    return new RefundingCharge(this, estimatedTokens);
+  }
+
   /**
    * Refills the bucket with the specified number of tokens.  If the bucket is currently full or near capacity then
    * fewer than {@code numTokens} may be added.
@@ -89,6 +208,27 @@ public interface TokenBucket
    */
   void refill(long numTokens);
 
+  /** A provisional charge of an estimated number of tokens against a token bucket. */
+  static interface Charge
+  {
+    /**
+     * Returns the number of tokens that were consumed up front.
+     *
+     * @return The estimated number of tokens.
+     */
+    long getEstimatedTokens();
+
+    /**
+     * Settles the charge with the real number of tokens the work cost.  If it cost less than the estimate then the
+     * difference is refunded to the bucket, and if it cost more then the difference is consumed from the bucket.  A
+     * bucket that doesn't have enough tokens for the difference goes into debt, up to its maximum debt, and no more
+     * tokens can be consumed until refills have paid the debt off.  A charge may only be settled once.
+     *
+     * @param actualTokens The real number of tokens, must not be negative.
+     */
+    void settle(long actualTokens);
+  }
+
   /** Encapsulation of a refilling strategy for a token bucket. */
   static interface RefillStrategy
   {
@@ -0,0 +1,140 @@
+/*
+ * Copyright 2012-2014 Brandon Beck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.isomorphism.util;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.MapMaker;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A handle to the limits of a group of token buckets that refill at a fixed interval.  Buckets are associated with a
+ * config by building them with {@link TokenBuckets.Builder#withConfig(TokenBucketConfig)}, after which calling
+ * {@link #update(long, long, long, TimeUnit)} changes the capacity and refill rate of every one of them in place.  The
+ * tokens already in each bucket are kept, clamped to the new capacity, and the time of each bucket's last refill is
+ * preserved.
+ * <p/>
+ * Each bucket is updated in its own short critical section, so in-flight consumers of a bucket are only ever held up
+ * for the duration of a field assignment and never for the duration of the whole update.  Buckets are only weakly
+ * referenced by their config and are forgotten once they are no longer in use.
+ */
+public final class TokenBucketConfig
+{
+  private final ConcurrentMap<TokenBucketImpl, FixedIntervalRefillStrategy> buckets =
+      new MapMaker().weakKeys().makeMap();
+  private long capacity;
+  private long refillTokens;
+  private long period;
+  private TimeUnit unit;
+
+  /**
+   * Create a TokenBucketConfig.
+   *
+   * @param capacity     The capacity of the token buckets.
+   * @param refillTokens The number of tokens to add to each bucket every period.
+   * @param period       How often to refill the buckets.
+   * @param unit         Unit for period.
+   */
+  public TokenBucketConfig(long capacity, long refillTokens, long period, TimeUnit unit)
+  {
+    set(capacity, refillTokens, period, unit);
+  }
+
+  /** Returns the capacity of the token buckets. */
+  public synchronized long getCapacity()
+  {
+    return capacity;
+  }
+
+  /** Returns the number of tokens added to each bucket every period. */
+  public synchronized long getRefillTokens()
+  {
+    return refillTokens;
+  }
+
+  /** Returns how often the buckets are refilled in the specified time unit. */
+  public synchronized long getPeriod(TimeUnit unit)
+  {
+    return unit.convert(period, this.unit);
+  }
+
+  /**
+   * Change the limits of every token bucket built with this config.
+   *
+   * @param capacity     The new capacity of the token buckets.
+   * @param refillTokens The new number of tokens to add to each bucket every period.
+   * @param period       How often to refill the buckets.
+   * @param unit         Unit for period.
+   */
+  public synchronized void update(long capacity, long refillTokens, long period, TimeUnit unit)
+  {
+    set(capacity, refillTokens, period, unit);
+
+    for (Map.Entry<TokenBucketImpl, FixedIntervalRefillStrategy> entry : buckets.entrySet()) {
+      TokenBucketImpl bucket = entry.getKey();
+      FixedIntervalRefillStrategy refillStrategy = entry.getValue();
+
+      // Hold the bucket's lock so that no consumer can observe the new capacity with the old rate or vice versa.
+      synchronized (bucket) {
+        bucket.setCapacity(capacity);
+        refillStrategy.setRate(refillTokens, period, unit);
+      }
+    }
+  }
+
+  /** Returns the number of token buckets that are currently associated with this config. */
+  public int getNumBuckets()
+  {
+    return buckets.size();
+  }
+
+  /** Create a new token bucket that uses the current limits of this config and follows any future updates. */
+  synchronized TokenBucketImpl newBucket(Ticker ticker, long initialTokens, TokenBucket.SleepStrategy sleepStrategy)
+  {
+    return newBucket(ticker, initialTokens, 0, new long[1], sleepStrategy);
+  }
+
+  /** Create a new token bucket that may go into debt and has several priorities, using the limits of this config. */
+  synchronized TokenBucketImpl newBucket(Ticker ticker, long initialTokens, long maxDebt, long[] reservedTokens,
+                                         TokenBucket.SleepStrategy sleepStrategy)
+  {
+    checkArgument(initialTokens <= capacity, "Initial tokens must not exceed the capacity");
+
+    FixedIntervalRefillStrategy refillStrategy = new FixedIntervalRefillStrategy(ticker, refillTokens, period, unit);
+    TokenBucketImpl bucket = new TokenBucketImpl(capacity, initialTokens, maxDebt, reservedTokens,
+        refillStrategy, sleepStrategy);
+    buckets.put(bucket, refillStrategy);
+
+    return bucket;
+  }
+
+  private void set(long capacity, long refillTokens, long period, TimeUnit unit)
+  {
+    checkArgument(capacity > 0, "Must specify a positive number of tokens");
+    checkArgument(refillTokens > 0, "Must specify a positive number of refill tokens");
+    checkArgument(period > 0, "Must specify a positive period");
+
+    this.capacity = capacity;
+    this.refillTokens = refillTokens;
+    this.period = period;
+    this.unit = checkNotNull(unit);
+  }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2012-2014 Brandon Beck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.isomorphism.util;
+
+/**
+ * The events emitted by the token bucket implementations.  The library still runs on Java 8 JVMs, which may not have
+ * Java Flight Recorder, so whether {@code jdk.jfr} is available is checked once and if it isn't then every helper
+ * does nothing.  Otherwise the events are recorded by {@link FlightRecorderEvents}.
+ */
+final class TokenBucketEvents
+{
+  private TokenBucketEvents() {}
+
+  private static final boolean ENABLED = isFlightRecorderAvailable();
+
+  /**
+   * Start timing a blocking consume.  Returns {@code null} if the event isn't enabled.
+   *
+   * @param numTokens The number of tokens being consumed.
+   * @return The started event, or {@code null}.
+   */
+  static Object beginConsumeWait(long numTokens)
+  {
+    return ENABLED ? FlightRecorderEvents.beginConsumeWait(numTokens) : null;
+  }
+
+  /**
+   * Finish timing a blocking consume.  The event is only recorded if the wait exceeded the configured threshold.
+   *
+   * @param event The event returned by {@link #beginConsumeWait(long)}, may be {@code null}.
+   */
+  static void commitConsumeWait(Object event)
+  {
+    if (event != null) {
+      FlightRecorderEvents.commitConsumeWait(event);
+    }
+  }
+
+  /**
+   * Record a run of consecutive denied consumes that has just ended.
+   *
+   * @param numDenied      The number of consumes that were denied.
+   * @param durationNanos  How long the bucket was denying consumes for.
+   */
+  static void commitDeniedBurst(long numDenied, long durationNanos)
+  {
+    if (ENABLED) {
+      FlightRecorderEvents.commitDeniedBurst(numDenied, durationNanos);
+    }
+  }
+
+  /**
+   * Record a refill that had to make up for more than one missed period.
+   *
+   * @param numPeriods The number of periods that were refilled at once.
+   * @param numTokens  The number of tokens that were refilled.
+   */
+  static void commitRefillCatchUp(long numPeriods, long numTokens)
+  {
+    if (ENABLED) {
+      FlightRecorderEvents.commitRefillCatchUp(numPeriods, numTokens);
+    }
+  }
+
+  private static boolean isFlightRecorderAvailable()
+  {
+    try {
+      // Initializing the events class registers the event types, which fails if there's no Flight Recorder.
+      Class.forName(FlightRecorderEvents.class.getName(), true, TokenBucketEvents.class.getClassLoader());
+      return true;
+    } catch (ClassNotFoundException e) {
+      return false;
+    } catch (LinkageError e) {
+      return false;
+    }
+  }
+}
@@ -16,9 +16,12 @@
 package org.isomorphism.util;
 
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
 
 /**
  * A token bucket implementation that is of a leaky bucket in the sense that it has a finite capacity and any added
@@ -33,23 +36,88 @@ import static com.google.common.base.Preconditions.checkNotNull;
  * and an accurate bucket implementation is required, it may be useful to never yield control of the CPU and to instead
  * busy wait.  This strategy allows the caller to make this decision for themselves instead of the library forcing a
  * decision.
+ * <p/>
+ * Consumers may also specify a priority.  Each priority above the lowest may have tokens reserved for it, which lower
+ * priorities are not allowed to consume, and threads blocked in {@code consume} give way to blocked threads of a
+ * higher priority.
+ * <p/>
+ * When the cost of some work is only known once it has finished, a consumer may charge an estimate up front and
+ * settle the real cost afterwards.  Settling may take the bucket into debt, up to a configured maximum, which is paid
+ * off by later refills before any more tokens can be consumed.
+ * <p/>
+ * To predict how long a consumer would wait for tokens the bucket needs to know how many tokens each refill adds and
+ * how often.  Refill strategies that implement {@link RateReportingRefillStrategy} say so themselves.  For other
+ * strategies, and for buckets refilled by a {@link RefillScheduler}, the bucket remembers the size of the most recent
+ * refill and the time from it until the refill after it.  Under load, when the bucket is refilled as soon as tokens
+ * become due, these closely track the real refill rate.  Under light load refills are observed late and the rate is
+ * overestimated, which errs on the side of admitting consumers.  Tokens added with {@link #refill(long)}, such as
+ * refunds, are not taken into account.
  */
 class TokenBucketImpl implements TokenBucket
 {
-  private final long capacity;
+  private volatile long capacity;
   private final RefillStrategy refillStrategy;
   private final SleepStrategy sleepStrategy;
+  private final long maxDebt;
   private long size;
 
+  // For each priority, the number of tokens that must remain in the bucket after a consume of that priority, both as
+  // configured and as clamped to the current capacity.
+  private final long[] reservedFloors;
+  private long[] floors;
+
+  // For each priority, the number of threads that are blocked waiting for tokens.
+  private final AtomicIntegerArray numWaiters;
+
+  // The total number of tokens that blocked threads are waiting for.
+  private final AtomicLong numWaitingTokens = new AtomicLong();
+
+  // The size of the most recent refill and the duration in nanoseconds from it until the next one, 0 if unknown.
+  private long lastRefillTokens;
+  private long lastRefillInterval;
+
+  // The length of the current run of denied consumes and when it started, used for the denied burst event.
+  private long numDenied;
+  private long deniedSince;
+
   TokenBucketImpl(long capacity, long initialTokens, RefillStrategy refillStrategy, SleepStrategy sleepStrategy)
+  {
+    this(capacity, initialTokens, 0, new long[1], refillStrategy, sleepStrategy);
+  }
+
+  /**
+   * Create a token bucket that may go into debt and has several priorities.
+   *
+   * @param maxDebt        The maximum number of tokens the bucket may owe after settling charges.
+   * @param reservedTokens For each priority, the number of tokens reserved for that priority and those above it.  The
+   *                       length of the array is the number of priorities, the entry for priority 0 must be 0.
+   */
+  TokenBucketImpl(long capacity, long initialTokens, long maxDebt, long[] reservedTokens,
+                  RefillStrategy refillStrategy, SleepStrategy sleepStrategy)
   {
     checkArgument(capacity > 0);
     checkArgument(initialTokens <= capacity);
+    checkArgument(maxDebt >= 0);
+    checkArgument(reservedTokens.length > 0);
+    checkArgument(reservedTokens[0] == 0);
+
+    // A consume of a given priority may not dip into the tokens reserved for any higher priority.
+    long[] floors = new long[reservedTokens.length];
+    for (int priority = reservedTokens.length - 1; priority > 0; priority--) {
+      checkArgument(reservedTokens[priority] >= 0);
+      checkArgument(reservedTokens[priority] < capacity);
+
+      floors[priority - 1] = Math.max(floors[priority], reservedTokens[priority]);
+    }
 
     this.capacity = capacity;
     this.refillStrategy = checkNotNull(refillStrategy);
     this.sleepStrategy = checkNotNull(sleepStrategy);
+    this.maxDebt = maxDebt;
     this.size = initialTokens;
+    this.reservedFloors = floors;
+    this.floors = floors;
+    this.numWaiters = new AtomicIntegerArray(reservedTokens.length);
   }
 
   /**
@@ -64,6 +132,29 @@ class TokenBucketImpl implements TokenBucket
     return capacity;
   }
 
+  /**
+   * Changes the capacity of this token bucket.  The tokens currently in the bucket are kept, if there are more of them
+   * than the new capacity allows then the excess overflows out of the bucket.  Reserved tokens are clamped so that at
+   * least one token of the new capacity is left for the lowest priority, and are restored if the capacity grows again.
+   * Threads blocked consuming more tokens than they could ever be granted at the new capacity fail with an
+   * {@code IllegalArgumentException}.
+   *
+   * @param capacity The new capacity of the bucket, must be a positive number.
+   */
+  synchronized void setCapacity(long capacity)
+  {
+    checkArgument(capacity > 0);
+
+    long[] floors = new long[reservedFloors.length];
+    for (int priority = 0; priority < floors.length; priority++) {
+      floors[priority] = Math.min(reservedFloors[priority], capacity - 1);
+    }
+
+    this.capacity = capacity;
+    this.floors = floors;
+    size = Math.min(size, capacity);
+  }
+
   /**
    * Returns the current number of tokens in the bucket.  If the bucket is empty then this method will return 0.
    *
@@ -74,9 +165,10 @@ class TokenBucketImpl implements TokenBucket
   {
     // Give the refill strategy a chance to add tokens if it needs to so that we have an accurate
     // count.
-    refill(refillStrategy.refill());
+    refillFromStrategy();
 
-    return size;
+    // While the bucket is in debt it has no tokens.
+    return Math.max(0, size);
   }
 
   /**
@@ -111,20 +203,22 @@ class TokenBucketImpl implements TokenBucket
    * @param numTokens The number of tokens to consume from the bucket, must be a positive number.
    * @return {@code true} if the tokens were consumed, {@code false} otherwise.
    */
-  public synchronized boolean tryConsume(long numTokens)
+  public boolean tryConsume(long numTokens)
   {
-    checkArgument(numTokens > 0, "Number of tokens to consume must be positive");
-    checkArgument(numTokens <= capacity, "Number of tokens to consume must be less than the capacity of the bucket.");
-
-    refill(refillStrategy.refill());
-
-    // Now try to consume some tokens
-    if (numTokens <= size) {
-      size -= numTokens;
-      return true;
-    }
+    return tryConsume(numTokens, 0);
+  }
 
-    return false;
+  /**
+   * Attempt to consume a specified number of tokens from the bucket at a given priority.  If the tokens were consumed
+   * then {@code true} is returned, otherwise {@code false} is returned.
+   *
+   * @param numTokens The number of tokens to consume from the bucket, must be a positive number.
+   * @param priority  The priority of the consumer, 0 is the lowest priority.
+   * @return {@code true} if the tokens were consumed, {@code false} otherwise.
+   */
+  public synchronized boolean tryConsume(long numTokens, int priority)
+  {
+    return recordOutcome(consumeIfAvailable(numTokens, priority));
   }
 
   /**
@@ -144,24 +238,363 @@ class TokenBucketImpl implements TokenBucket
    */
   public void consume(long numTokens)
   {
-    while (true) {
-      if (tryConsume(numTokens)) {
-        break;
+    consume(numTokens, 0);
+  }
+
+  /**
+   * Consumes multiple tokens from the bucket at a given priority.  If enough tokens are not currently available, or
+   * threads of a higher priority are waiting for tokens, then this method will block until they are and there aren't.
+   *
+   * @param numTokens The number of tokens to consume from the bucket, must be a positive number.
+   * @param priority  The priority of the consumer, 0 is the lowest priority.
+   * @throws IllegalArgumentException If the tokens could never be consumed, including when the capacity of the bucket
+   *                                  shrinks while waiting for them.
+   */
+  public void consume(long numTokens, int priority)
+  {
+    if (!hasWaitersAbove(priority) && consumeIfAvailable(numTokens, priority)) {
+      return;
+    }
+
+    // The attempt above validates the request under the lock, but it's skipped while higher priorities are waiting.
+    checkConsumable(numTokens, priority);
+
+    Object event = TokenBucketEvents.beginConsumeWait(numTokens);
+    numWaiters.incrementAndGet(priority);
+    numWaitingTokens.addAndGet(numTokens);
+    try {
+      while (true) {
+        sleepStrategy.sleep();
+
+        if (!hasWaitersAbove(priority) && consumeIfAvailable(numTokens, priority)) {
+          break;
+        }
+      }
+    } finally {
+      numWaitingTokens.addAndGet(-numTokens);
+      numWaiters.decrementAndGet(priority);
+    }
+    TokenBucketEvents.commitConsumeWait(event);
+  }
+
+  /**
+   * Attempt to consume a specified number of tokens from the bucket, waiting at most the specified amount of time for
+   * them to become available.  If the predicted wait is longer than the timeout then {@code false} is returned
+   * immediately.
+   *
+   * @param numTokens The number of tokens to consume from the bucket, must be a positive number.
+   * @param timeout   The maximum amount of time to wait for the tokens.
+   * @param unit      The time unit of the timeout.
+   * @return {@code true} if the tokens were consumed, {@code false} otherwise.
+   */
+  public boolean tryConsume(long numTokens, long timeout, TimeUnit unit)
+  {
+    checkArgument(timeout >= 0, "Timeout must not be negative");
+
+    if (!hasWaitersAbove(0) && consumeIfAvailable(numTokens, 0)) {
+      return recordOutcome(true);
+    }
+
+    long timeoutNanos = unit.toNanos(timeout);
+    try {
+      if (getEstimatedWait(numTokens, TimeUnit.NANOSECONDS) > timeoutNanos) {
+        return recordOutcome(false);
       }
+    } catch (UnsupportedOperationException e) {
+      // Without a prediction all we can do is wait for the timeout.
+    }
+
+    long deadline = System.nanoTime() + timeoutNanos;
+    Object event = TokenBucketEvents.beginConsumeWait(numTokens);
+    numWaiters.incrementAndGet(0);
+    numWaitingTokens.addAndGet(numTokens);
+    try {
+      while (System.nanoTime() - deadline < 0) {
+        sleepStrategy.sleep();
+
+        if (!hasWaitersAbove(0) && consumeIfAvailable(numTokens, 0)) {
+          TokenBucketEvents.commitConsumeWait(event);
+          return recordOutcome(true);
+        }
+      }
+    } finally {
+      numWaitingTokens.addAndGet(-numTokens);
+      numWaiters.decrementAndGet(0);
+    }
+
+    return recordOutcome(false);
+  }
+
+  /**
+   * Returns a prediction of how long a consumer would have to wait before the specified number of tokens could be
+   * consumed from the bucket, or 0 if they could be consumed right away.  The prediction accounts for the tokens that
+   * blocked consumers are already waiting for and any debt the bucket is in.
+   *
+   * @param numTokens The number of tokens to consume from the bucket, must be a positive number.
+   * @param unit      The time unit to express the return value in.
+   * @return The predicted wait for the tokens.
+   * @throws UnsupportedOperationException If the refill strategy can't say when tokens will next be added.
+   */
+  public synchronized long getEstimatedWait(long numTokens, TimeUnit unit) throws UnsupportedOperationException
+  {
+    checkConsumable(numTokens, 0);
+
+    refillFromStrategy();
+
+    // The tokens we'd need beyond those that are in the bucket and not already spoken for by blocked consumers.
+    long deficit = numTokens + numWaitingTokens.get() - (size - floors[0]);
+    if (deficit <= 0) {
+      return 0;
+    }
+
+    long wait = refillStrategy.getDurationUntilNextRefill(TimeUnit.NANOSECONDS);
+
+    long refillTokens = lastRefillTokens;
+    long refillInterval = lastRefillInterval;
+    if (refillStrategy instanceof RateReportingRefillStrategy) {
+      RateReportingRefillStrategy strategy = (RateReportingRefillStrategy) refillStrategy;
+      refillTokens = Math.min(capacity, strategy.getNumTokensPerRefill());
+      refillInterval = strategy.getRefillInterval(TimeUnit.NANOSECONDS);
+    }
+
+    // Until we've seen a refill all we know is that some tokens will arrive at the next one.
+    if (refillTokens > 0) {
+      long numRefills = (deficit + refillTokens - 1) / refillTokens;
+      long interval = Math.max(1, refillInterval);
+      wait = (numRefills - 1 > (Long.MAX_VALUE - wait) / interval)
+          ? Long.MAX_VALUE
+          : wait + (numRefills - 1) * interval;
+    }
+
+    return unit.convert(wait, TimeUnit.NANOSECONDS);
+  }
 
-      sleepStrategy.sleep();
+  /**
+   * Attempt to consume an estimate of the number of tokens some work will cost.  If the tokens were consumed then a
+   * charge is returned which must be settled with the real cost once it is known, otherwise {@code null} is returned.
+   *
+   * @param estimatedTokens The estimated number of tokens, must be a positive number.
+   * @return The charge for the estimated tokens, or {@code null} if they weren't consumed.
+   */
+  public Charge tryCharge(long estimatedTokens)
+  {
+    if (!tryConsume(estimatedTokens)) {
+      return null;
     }
+
+    return new ChargeImpl(estimatedTokens);
+  }
+
+  /**
+   * Consume an estimate of the number of tokens some work will cost.  If enough tokens are not currently available
+   * then this method will block until they are.
+   *
+   * @param estimatedTokens The estimated number of tokens, must be a positive number.
+   * @return The charge for the estimated tokens.
+   */
+  public Charge charge(long estimatedTokens)
+  {
+    consume(estimatedTokens);
+    return new ChargeImpl(estimatedTokens);
   }
 
   /**
    * Refills the bucket with the specified number of tokens.  If the bucket is currently full or near capacity then
-   * fewer than {@code numTokens} may be added.
+   * fewer than {@code numTokens} may be added.  If the bucket is in debt then the tokens pay that off first.  These
+   * tokens are not taken to be a refill at the bucket's usual rate when predicting waits.
    *
    * @param numTokens The number of tokens to add to the bucket.
    */
   public synchronized void refill(long numTokens)
   {
-    long newTokens = Math.min(capacity, Math.max(0, numTokens));
-    size = Math.max(0, Math.min(size + newTokens, capacity));
+    addTokens(numTokens);
+  }
+
+  /** Adds a period's worth of tokens pushed into the bucket by a refill scheduler. */
+  synchronized void scheduledRefill(long numTokens)
+  {
+    learnRefill(numTokens);
+    addTokens(numTokens);
+  }
+
+  /** Remember the size of a refill at the bucket's usual rate and the time until the next one, to predict waits. */
+  private void learnRefill(long numTokens)
+  {
+    if (numTokens > 0) {
+      lastRefillTokens = Math.min(capacity, numTokens);
+      try {
+        lastRefillInterval = refillStrategy.getDurationUntilNextRefill(TimeUnit.NANOSECONDS);
+      } catch (UnsupportedOperationException e) {
+        lastRefillInterval = 0;
+      }
+    }
+  }
+
+  /** Adds the tokens the refill strategy says are due, first removing any stored tokens that it says have gone cold. */
+  private void refillFromStrategy()
+  {
+    if (size > 0 && refillStrategy instanceof ColdTokensRefillStrategy) {
+      size -= Math.min(size, ((ColdTokensRefillStrategy) refillStrategy).getNumColdTokens(size));
+    }
+
+    long numTokens = refillStrategy.refill();
+    if (!(refillStrategy instanceof RateReportingRefillStrategy)) {
+      learnRefill(numTokens);
+    }
+
+    addTokens(numTokens);
+  }
+
+  /** Adds tokens to the bucket without treating them as a refill. */
+  private void addTokens(long numTokens)
+  {
+    long newTokens = Math.max(0, numTokens);
+
+    // The debt is paid off before the capacity limits what's left, so a large refill clears any debt.  Written this way
+    // so that adding to a nearly full bucket can't overflow, adding to a bucket in debt never can.
+    size = (size < 0 || newTokens <= capacity - size) ? Math.min(capacity, size + newTokens) : capacity;
+  }
+
+  /**
+   * Checks that a consume of the specified number of tokens at the specified priority could ever succeed, which it
+   * can't if it needs tokens that are reserved for higher priorities.
+   */
+  private synchronized void checkConsumable(long numTokens, int priority)
+  {
+    checkArgument(numTokens > 0, "Number of tokens to consume must be positive");
+    checkArgument(numTokens <= capacity, "Number of tokens to consume must be less than the capacity of the bucket.");
+    checkArgument(priority >= 0 && priority < floors.length, "Priority must be one of the bucket's priorities");
+    checkArgument(numTokens <= capacity - floors[priority],
+        "Number of tokens to consume must not exceed the tokens that aren't reserved for higher priorities.");
+  }
+
+  /**
+   * Consume the specified number of tokens at the specified priority if they're available, leaving behind any that
+   * are reserved for higher priorities.  Unlike {@link #tryConsume(long, int)} a denial isn't counted towards a denied
+   * burst, so that the retries of a blocked thread aren't reported as many denied consumes.
+   */
+  private synchronized boolean consumeIfAvailable(long numTokens, int priority)
+  {
+    checkConsumable(numTokens, priority);
+
+    refillFromStrategy();
+
+    if (numTokens <= size - floors[priority]) {
+      size -= numTokens;
+      return true;
+    }
+
+    return false;
+  }
+
+  /** Count the outcome of a consume that is being returned to its caller towards the current denied burst. */
+  private synchronized boolean recordOutcome(boolean consumed)
+  {
+    if (consumed) {
+      if (numDenied > 0) {
+        TokenBucketEvents.commitDeniedBurst(numDenied, System.nanoTime() - deniedSince);
+        numDenied = 0;
+      }
+    } else if (numDenied++ == 0) {
+      deniedSince = System.nanoTime();
+    }
+
+    return consumed;
+  }
+
+  /** Returns the length of the current run of denied consumes. */
+  synchronized long getNumDenied()
+  {
+    return numDenied;
+  }
+
+  /** Returns whether any threads of a higher priority than the specified one are blocked waiting for tokens. */
+  private boolean hasWaitersAbove(int priority)
+  {
+    // Nothing is below priority 0, so this is safe to call before the priority has been checked.
+    for (int higher = Math.max(1, priority + 1); higher < reservedFloors.length; higher++) {
+      if (numWaiters.get(higher) > 0) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  private final class ChargeImpl implements Charge
+  {
+    private final long estimatedTokens;
+    private boolean settled = false;
+
+    ChargeImpl(long estimatedTokens)
+    {
+      this.estimatedTokens = estimatedTokens;
+    }
+
+    @Override
+    public long getEstimatedTokens()
+    {
+      return estimatedTokens;
+    }
+
+    @Override
+    public void settle(long actualTokens)
+    {
+      checkArgument(actualTokens >= 0, "Number of tokens to settle must not be negative");
+
+      synchronized (TokenBucketImpl.this) {
+        checkState(!settled, "Charge has already been settled");
+        settled = true;
+
+        if (actualTokens < estimatedTokens) {
+          addTokens(estimatedTokens - actualTokens);
+        } else {
+          // Charge the difference, going no further into debt than we're allowed to.  Written this way so that a
+          // huge maximum debt can't overflow.
+          long extraTokens = actualTokens - estimatedTokens;
+          long room = (maxDebt > Long.MAX_VALUE - Math.max(0, size)) ? Long.MAX_VALUE : size + maxDebt;
+          size = (extraTokens > room) ? -maxDebt : size - extraTokens;
+        }
+      }
+    }
+  }
+
+  /**
+   * A refill strategy that decides whether the tokens already stored in the bucket may still be consumed, for example
+   * because they have gone cold while the bucket was idle.  Right before each refill the bucket tells the strategy how
+   * many tokens it holds and removes however many of them the strategy says have gone cold.
+   */
+  interface ColdTokensRefillStrategy extends RefillStrategy
+  {
+    /**
+     * Returns how many of the tokens stored in the bucket have gone cold and must be removed before the next refill.
+     *
+     * @param numStoredTokens The number of tokens in the bucket, always positive.
+     * @return The number of stored tokens to remove, at most {@code numStoredTokens}.
+     */
+    long getNumColdTokens(long numStoredTokens);
+  }
+
+  /**
+   * A refill strategy that can say how many tokens it adds per refill and how often at its current rate.  Waits are
+   * predicted from these rather than from the refills the bucket has seen, which after an idle period catch up on many
+   * periods at once.
+   */
+  interface RateReportingRefillStrategy extends RefillStrategy
+  {
+    /**
+     * Returns the number of tokens added by each refill at the current rate.
+     *
+     * @return The number of tokens per refill.
+     */
+    long getNumTokensPerRefill();
+
+    /**
+     * Returns the time between refills at the current rate.
+     *
+     * @param unit The time unit to express the return value in.
+     * @return The time between refills.
+     */
+    long getRefillInterval(TimeUnit unit);
   }
 }
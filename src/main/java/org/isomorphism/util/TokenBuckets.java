@@ -18,12 +18,17 @@ package org.isomorphism.util;
 import com.google.common.base.Ticker;
 import com.google.common.util.concurrent.Uninterruptibles;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.concurrent.TimeUnit;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
-/** Static utility methods pertaining to creating {@link TokenBucketImpl} instances. */
+/** Static utility methods pertaining to creating {@link TokenBucketImpl} and {@link MultiTokenBucketImpl} instances. */
 public final class TokenBuckets
 {
   private TokenBuckets() {}
@@ -34,12 +39,23 @@ public final class TokenBuckets
     return new Builder();
   }
 
+  /** Create a new builder for multi-dimensional token buckets. */
+  public static MultiBuilder multiBuilder()
+  {
+    return new MultiBuilder();
+  }
+
   public static class Builder
   {
     private Long capacity = null;
     private long initialTokens = 0;
+    private long maxDebt = 0;
     private TokenBucketImpl.RefillStrategy refillStrategy = null;
     private TokenBucketImpl.SleepStrategy sleepStrategy = YIELDING_SLEEP_STRATEGY;
+    private TokenBucketConfig config = null;
+    private final SortedMap<Integer, Long> reservedTokens = new TreeMap<Integer, Long>();
+    private RefillScheduler refillScheduler = null;
+    private long scheduledRefillTokens = 0;
     private final Ticker ticker = Ticker.systemTicker();
 
     /** Specify the overall capacity of the token bucket. */
@@ -58,16 +74,75 @@ public final class TokenBuckets
       return this;
     }
 
+    /**
+     * Allow the bucket to go into debt by up to a number of tokens when charges are settled for more than their
+     * estimate.  By default the bucket can't go into debt and any cost beyond the tokens in the bucket is forgiven.
+     */
+    public Builder withMaxDebt(long numTokens)
+    {
+      checkArgument(numTokens >= 0, "Must specify a non-negative number of tokens");
+      maxDebt = numTokens;
+      return this;
+    }
+
+    /**
+     * Reserve tokens for a priority.  Consumers of a lower priority will not be able to take the bucket below this
+     * number of tokens.  Priorities start at 0, which is the lowest priority and can't have tokens reserved for it.
+     */
+    public Builder withReservedTokens(int priority, long numTokens)
+    {
+      checkArgument(priority > 0, "Must specify a priority above the lowest");
+      checkArgument(numTokens >= 0, "Must specify a non-negative number of tokens");
+      reservedTokens.put(priority, numTokens);
+      return this;
+    }
+
     /** Refill tokens at a fixed interval. */
     public Builder withFixedIntervalRefillStrategy(long refillTokens, long period, TimeUnit unit)
     {
       return withRefillStrategy(new FixedIntervalRefillStrategy(ticker, refillTokens, period, unit));
     }
 
+    /**
+     * Refill tokens smoothly, ramping up from a third of the steady rate to the steady rate over a warm up period
+     * whenever the bucket has been idle.
+     */
+    public Builder withWarmingUpRefillStrategy(long refillTokens, long period, TimeUnit unit, long warmupPeriod,
+                                               TimeUnit warmupUnit)
+    {
+      return withRefillStrategy(
+          new WarmingUpRefillStrategy(ticker, refillTokens, period, unit, warmupPeriod, warmupUnit));
+    }
+
+    /**
+     * Take the capacity and fixed interval refill rate from a shared config.  The bucket will follow any later updates
+     * made to the config.  This replaces any capacity or refill strategy that has been specified.
+     */
+    public Builder withConfig(TokenBucketConfig config)
+    {
+      this.config = checkNotNull(config);
+      return this;
+    }
+
+    /**
+     * Have tokens pushed into the bucket by a shared background scheduler once every period of the scheduler, rather
+     * than refilling lazily on every consume.
+     */
+    public Builder withScheduledRefillStrategy(RefillScheduler scheduler, long refillTokens)
+    {
+      checkArgument(refillTokens > 0, "Must specify a positive number of refill tokens");
+
+      withRefillStrategy(checkNotNull(scheduler).getRefillStrategy());
+      this.refillScheduler = scheduler;
+      this.scheduledRefillTokens = refillTokens;
+      return this;
+    }
+
     /** Use a user defined refill strategy. */
     public Builder withRefillStrategy(TokenBucket.RefillStrategy refillStrategy)
     {
       this.refillStrategy = checkNotNull(refillStrategy);
+      this.refillScheduler = null;
       return this;
     }
 
@@ -96,10 +171,100 @@ public final class TokenBuckets
     /** Build the token bucket. */
     public TokenBucket build()
     {
+      long[] reservedTokens = new long[this.reservedTokens.isEmpty() ? 1 : this.reservedTokens.lastKey() + 1];
+      for (Map.Entry<Integer, Long> entry : this.reservedTokens.entrySet()) {
+        reservedTokens[entry.getKey()] = entry.getValue();
+      }
+
+      if (config != null) {
+        return config.newBucket(ticker, initialTokens, maxDebt, reservedTokens, sleepStrategy);
+      }
+
       checkNotNull(capacity, "Must specify a capacity");
       checkNotNull(refillStrategy, "Must specify a refill strategy");
 
-      return new TokenBucketImpl(capacity, initialTokens, refillStrategy, sleepStrategy);
+      TokenBucketImpl bucket =
+          new TokenBucketImpl(capacity, initialTokens, maxDebt, reservedTokens, refillStrategy, sleepStrategy);
+      if (refillScheduler != null) {
+        refillScheduler.register(bucket, scheduledRefillTokens);
+      }
+
+      return bucket;
+    }
+  }
+
+  public static class MultiBuilder
+  {
+    private final List<Long> capacities = new ArrayList<Long>();
+    private final List<Long> initialTokens = new ArrayList<Long>();
+    private final List<TokenBucket.RefillStrategy> refillStrategies = new ArrayList<TokenBucket.RefillStrategy>();
+    private TokenBucket.SleepStrategy sleepStrategy = YIELDING_SLEEP_STRATEGY;
+    private final Ticker ticker = Ticker.systemTicker();
+
+    /** Add a dimension that refills tokens at a fixed interval. */
+    public MultiBuilder withFixedIntervalDimension(long capacity, long refillTokens, long period, TimeUnit unit)
+    {
+      return withDimension(capacity, new FixedIntervalRefillStrategy(ticker, refillTokens, period, unit));
+    }
+
+    /** Add a dimension that uses a user defined refill strategy. */
+    public MultiBuilder withDimension(long capacity, TokenBucket.RefillStrategy refillStrategy)
+    {
+      return withDimension(capacity, 0, refillStrategy);
+    }
+
+    /** Add a dimension that is initialized with a specific number of tokens and uses a user defined refill strategy. */
+    public MultiBuilder withDimension(long capacity, long initialTokens, TokenBucket.RefillStrategy refillStrategy)
+    {
+      checkArgument(capacity > 0, "Must specify a positive number of tokens");
+      checkArgument(initialTokens >= 0, "Must specify a non-negative number of initial tokens");
+      checkArgument(initialTokens <= capacity, "Initial tokens must not exceed the capacity");
+
+      this.capacities.add(capacity);
+      this.initialTokens.add(initialTokens);
+      this.refillStrategies.add(checkNotNull(refillStrategy));
+      return this;
+    }
+
+    /** Use a sleep strategy that will always attempt to yield the CPU to other processes. */
+    public MultiBuilder withYieldingSleepStrategy()
+    {
+      return withSleepStrategy(YIELDING_SLEEP_STRATEGY);
+    }
+
+    /**
+     * Use a sleep strategy that will not yield the CPU to other processes.  It will busy wait until more tokens become
+     * available.
+     */
+    public MultiBuilder withBusyWaitSleepStrategy()
+    {
+      return withSleepStrategy(BUSY_WAIT_SLEEP_STRATEGY);
+    }
+
+    /** Use a user defined sleep strategy. */
+    public MultiBuilder withSleepStrategy(TokenBucket.SleepStrategy sleepStrategy)
+    {
+      this.sleepStrategy = checkNotNull(sleepStrategy);
+      return this;
+    }
+
+    /** Build the multi-dimensional token bucket. */
+    public MultiTokenBucket build()
+    {
+      checkArgument(!capacities.isEmpty(), "Must specify at least one dimension");
+
+      int numDimensions = capacities.size();
+      long[] capacities = new long[numDimensions];
+      long[] initialTokens = new long[numDimensions];
+      for (int i = 0; i < numDimensions; i++) {
+        capacities[i] = this.capacities.get(i);
+        initialTokens[i] = this.initialTokens.get(i);
+      }
+
+      TokenBucket.RefillStrategy[] refillStrategies =
+          this.refillStrategies.toArray(new TokenBucket.RefillStrategy[numDimensions]);
+
+      return new MultiTokenBucketImpl(capacities, initialTokens, refillStrategies, sleepStrategy);
     }
   }
 
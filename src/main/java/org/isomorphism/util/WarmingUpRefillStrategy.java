@@ -0,0 +1,207 @@
+/*
+ * Copyright 2012-2014 Brandon Beck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.isomorphism.util;
+
+import com.google.common.base.Ticker;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A token bucket refill strategy that provides tokens smoothly, ramping the rate up from a cold rate to a steady rate
+ * of N tokens every T units of time over a warm up period.  The strategy goes cold again whenever it hasn't been asked
+ * for tokens for a whole warm up period, which happens when nothing has consumed from the bucket for that long.  This
+ * is similar in spirit to the warming up {@code RateLimiter} in Guava and is useful for protecting resources that
+ * perform badly right after being idle, such as a backend with cold caches.
+ * <p/>
+ * Tokens accrue while a bucket is idle, but only at the cold rate and never more than N of them, so after being idle
+ * the bucket only gets a small burst of tokens and then a slowly increasing rate.  Like the stored permits of Guava's
+ * warming up {@code RateLimiter}, tokens that were sitting in the bucket when it went idle are cold too.  They are
+ * removed when the bucket is next refilled, so that a bucket which filled up under light load doesn't hand out its
+ * whole capacity at once after being idle, and are made up for by the tokens of the ramping rate.
+ */
+public class WarmingUpRefillStrategy
+    implements TokenBucketImpl.ColdTokensRefillStrategy, TokenBucketImpl.RateReportingRefillStrategy
+{
+  /** The default ratio of the steady rate to the cold rate, the same one Guava uses. */
+  static final double DEFAULT_COLD_FACTOR = 3.0;
+
+  /** Tolerance for floating point error when deciding whether a whole token has accrued. */
+  private static final double EPSILON = 1e-9;
+
+  private final Ticker ticker;
+  private final long numTokensPerPeriod;
+  private final long warmupDurationInNanos;
+  private final double steadyRate;
+  private final double coldRate;
+  private boolean refilled;
+  private long lastRefillTime;
+  private long warmupStartTime;
+  private double partialTokens;
+
+  /**
+   * Create a WarmingUpRefillStrategy that starts out at a third of the steady rate.
+   *
+   * @param ticker             A ticker to use to measure time.
+   * @param numTokensPerPeriod The number of tokens to add to the bucket every period once warmed up.
+   * @param period             How often to add numTokensPerPeriod tokens to the bucket.
+   * @param unit               Unit for period.
+   * @param warmupPeriod       How long it takes to ramp up to the steady rate.
+   * @param warmupUnit         Unit for warmupPeriod.
+   */
+  public WarmingUpRefillStrategy(Ticker ticker, long numTokensPerPeriod, long period, TimeUnit unit,
+                                 long warmupPeriod, TimeUnit warmupUnit)
+  {
+    this(ticker, numTokensPerPeriod, period, unit, warmupPeriod, warmupUnit, DEFAULT_COLD_FACTOR);
+  }
+
+  /**
+   * Create a WarmingUpRefillStrategy.
+   *
+   * @param ticker             A ticker to use to measure time.
+   * @param numTokensPerPeriod The number of tokens to add to the bucket every period once warmed up.
+   * @param period             How often to add numTokensPerPeriod tokens to the bucket.
+   * @param unit               Unit for period.
+   * @param warmupPeriod       How long it takes to ramp up to the steady rate.
+   * @param warmupUnit         Unit for warmupPeriod.
+   * @param coldFactor         How many times slower than the steady rate the cold rate is, must be at least 1.
+   */
+  public WarmingUpRefillStrategy(Ticker ticker, long numTokensPerPeriod, long period, TimeUnit unit,
+                                 long warmupPeriod, TimeUnit warmupUnit, double coldFactor)
+  {
+    checkArgument(numTokensPerPeriod > 0, "Must specify a positive number of tokens");
+    checkArgument(period > 0, "Must specify a positive period");
+    checkArgument(warmupPeriod > 0, "Must specify a positive warm up period");
+    checkArgument(coldFactor >= 1, "Cold factor must be at least 1");
+
+    this.ticker = checkNotNull(ticker);
+    this.numTokensPerPeriod = numTokensPerPeriod;
+    this.warmupDurationInNanos = warmupUnit.toNanos(warmupPeriod);
+    this.steadyRate = (double) numTokensPerPeriod / unit.toNanos(period);
+    this.coldRate = steadyRate / coldFactor;
+  }
+
+  @Override
+  public synchronized long refill()
+  {
+    long now = ticker.read();
+
+    if (!refilled) {
+      refilled = true;
+      lastRefillTime = now;
+      warmupStartTime = now;
+      return numTokensPerPeriod;
+    }
+
+    // If we haven't been asked for tokens in a whole warm up period then the bucket has been idle and we start over
+    // from the cold rate.  The bucket gets what it would have accrued at the cold rate, up to a single period's worth,
+    // and like any other refill holds on to a fraction of a token until next time.
+    if (isIdle(now)) {
+      double tokens = partialTokens + Math.min(numTokensPerPeriod, (now - lastRefillTime) * coldRate);
+      long numTokens = (long) (tokens + EPSILON);
+
+      lastRefillTime = now;
+      warmupStartTime = now;
+      partialTokens = Math.max(0, tokens - numTokens);
+      return numTokens;
+    }
+
+    // Otherwise hand out whatever whole tokens have accrued at the ramping rate since we were last asked, holding on
+    // to any fraction of a token until next time.
+    double tokens = partialTokens + getNumTokensBetween(lastRefillTime, now);
+    long numTokens = (long) (tokens + EPSILON);
+
+    lastRefillTime = now;
+    partialTokens = Math.max(0, tokens - numTokens);
+    return numTokens;
+  }
+
+  @Override
+  public synchronized long getNumColdTokens(long numStoredTokens)
+  {
+    // The refill after an idle period hands out the whole burst that a cold bucket is allowed, so everything that was
+    // stored before then is removed rather than added on top of it.
+    return isIdle(ticker.read()) ? numStoredTokens : 0;
+  }
+
+  @Override
+  public long getNumTokensPerRefill()
+  {
+    // Tokens are handed out one at a time as they accrue.
+    return 1;
+  }
+
+  @Override
+  public synchronized long getRefillInterval(TimeUnit unit)
+  {
+    // The rate never decreases while warming up, so assuming the current rate holds gives an upper bound.
+    long now = ticker.read();
+    double rate = (!refilled || isIdle(now)) ? coldRate : getRate(now);
+    return unit.convert((long) Math.ceil(1 / rate), TimeUnit.NANOSECONDS);
+  }
+
+  @Override
+  public synchronized long getDurationUntilNextRefill(TimeUnit unit)
+  {
+    long now = ticker.read();
+    if (!refilled || isIdle(now)) {
+      return 0;
+    }
+
+    // The rate never decreases while warming up, so assuming the current rate holds gives an upper bound.
+    double remaining = 1 - partialTokens - getNumTokensBetween(lastRefillTime, now);
+    if (remaining <= EPSILON) {
+      return 0;
+    }
+
+    return unit.convert((long) Math.ceil(remaining / getRate(now)), TimeUnit.NANOSECONDS);
+  }
+
+  /** Returns whether we haven't been asked for tokens in a whole warm up period, as of the specified time. */
+  private boolean isIdle(long time)
+  {
+    return refilled && time - lastRefillTime >= warmupDurationInNanos;
+  }
+
+  /** Returns the rate, in tokens per nanosecond, at the specified time. */
+  private double getRate(long time)
+  {
+    double warmth = Math.min(1.0, (double) (time - warmupStartTime) / warmupDurationInNanos);
+    return coldRate + (steadyRate - coldRate) * warmth;
+  }
+
+  /** Returns the number of tokens, including fractions of a token, that accrue between the specified times. */
+  private double getNumTokensBetween(long start, long end)
+  {
+    long warmupEndTime = warmupStartTime + warmupDurationInNanos;
+    double tokens = 0;
+
+    // While warming up the rate increases linearly, so the tokens accrued are the area of a trapezoid.
+    if (start < warmupEndTime) {
+      long rampEnd = Math.min(end, warmupEndTime);
+      tokens += (getRate(start) + getRate(rampEnd)) / 2 * (rampEnd - start);
+    }
+
+    // After that tokens accrue at the steady rate.
+    if (end > warmupEndTime) {
+      tokens += steadyRate * (end - Math.max(start, warmupEndTime));
+    }
+
+    return tokens;
+  }
+}
@@ -21,6 +21,8 @@ import org.junit.Test;
 import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
 
 public class FixedIntervalRefillStrategyTest
 {
@@ -142,6 +144,59 @@ public class FixedIntervalRefillStrategyTest
     assertEquals(10000, strategy.getDurationUntilNextRefill(TimeUnit.MILLISECONDS));
   }
 
+  @Test
+  public void testSetRateKeepsLastRefillTime()
+  {
+    strategy.refill();
+
+    // Halve the period, the next refill should come half a period after the last one.
+    strategy.setRate(2 * N, P / 2, U);
+    assertEquals(P / 2, strategy.getDurationUntilNextRefill(U));
+
+    ticker.advance(P / 2 - 1, U);
+    assertEquals(0, strategy.refill());
+
+    ticker.advance(1, U);
+    assertEquals(2 * N, strategy.refill());
+  }
+
+  @Test
+  public void testRefillRate()
+  {
+    assertEquals(N, strategy.getNumTokensPerRefill());
+    assertEquals(P, strategy.getRefillInterval(U));
+
+    strategy.setRate(2 * N, P / 2, U);
+    assertEquals(2 * N, strategy.getNumTokensPerRefill());
+    assertEquals(P / 2, strategy.getRefillInterval(U));
+  }
+
+  @Test
+  public void testEstimatedWaitAfterIdleCatchUp()
+  {
+    TokenBucketImpl bucket = new TokenBucketImpl(10 * N, 0, strategy, mock(TokenBucket.SleepStrategy.class));
+    assertTrue(bucket.tryConsume(N));
+
+    // Idle long enough to catch up on far more than the capacity, which is not the rate tokens arrive at afterwards.
+    ticker.advance(100 * P, U);
+    assertTrue(bucket.tryConsume(10 * N));
+
+    // 4N tokens take 4 refills, the first of them in P.
+    assertEquals(4 * P, bucket.getEstimatedWait(4 * N, U));
+  }
+
+  @Test
+  public void testLongIdlePeriodSaturates()
+  {
+    FixedIntervalRefillStrategy strategy =
+        new FixedIntervalRefillStrategy(ticker, Long.MAX_VALUE / 4, 1, TimeUnit.NANOSECONDS);
+    strategy.refill();
+
+    // Eight periods' worth of tokens doesn't fit in a long.
+    ticker.advance(8, TimeUnit.NANOSECONDS);
+    assertEquals(Long.MAX_VALUE, strategy.refill());
+  }
+
   private static final class MockTicker extends Ticker
   {
     private long now = 0;
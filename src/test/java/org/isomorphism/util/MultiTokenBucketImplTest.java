@@ -0,0 +1,191 @@
+/*
+ * Copyright 2012-2014 Brandon Beck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.isomorphism.util;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+public class MultiTokenBucketImplTest
+{
+  private static final long REQUESTS = 10;
+  private static final long BYTES = 1000;
+
+  private final MockRefillStrategy requestsRefillStrategy = new MockRefillStrategy();
+  private final MockRefillStrategy bytesRefillStrategy = new MockRefillStrategy();
+  private final TokenBucket.SleepStrategy sleepStrategy = mock(TokenBucket.SleepStrategy.class);
+  private final MultiTokenBucketImpl bucket = new MultiTokenBucketImpl(
+      new long[]{REQUESTS, BYTES},
+      new long[]{0, 0},
+      new TokenBucket.RefillStrategy[]{requestsRefillStrategy, bytesRefillStrategy},
+      sleepStrategy);
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNoDimensions()
+  {
+    new MultiTokenBucketImpl(new long[0], new long[0], new TokenBucket.RefillStrategy[0], sleepStrategy);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testZeroCapacity()
+  {
+    new MultiTokenBucketImpl(new long[]{0}, new long[]{0}, new TokenBucket.RefillStrategy[]{requestsRefillStrategy},
+        sleepStrategy);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMoreInitialTokensThanCapacity()
+  {
+    new MultiTokenBucketImpl(new long[]{1}, new long[]{2}, new TokenBucket.RefillStrategy[]{requestsRefillStrategy},
+        sleepStrategy);
+  }
+
+  @Test
+  public void testGetCapacity()
+  {
+    assertEquals(2, bucket.getNumDimensions());
+    assertEquals(REQUESTS, bucket.getCapacity(0));
+    assertEquals(BYTES, bucket.getCapacity(1));
+  }
+
+  @Test
+  public void testRefillIsPerDimension()
+  {
+    requestsRefillStrategy.addTokens(1);
+    bytesRefillStrategy.addTokens(BYTES + 1);
+
+    assertEquals(1, bucket.getNumTokens(0));
+    assertEquals(BYTES, bucket.getNumTokens(1));
+  }
+
+  @Test
+  public void testTryConsumeAllDimensions()
+  {
+    requestsRefillStrategy.addTokens(REQUESTS);
+    bytesRefillStrategy.addTokens(BYTES);
+
+    assertTrue(bucket.tryConsume(new long[]{1, 100}));
+    assertEquals(REQUESTS - 1, bucket.getNumTokens(0));
+    assertEquals(BYTES - 100, bucket.getNumTokens(1));
+  }
+
+  @Test
+  public void testFailedConsumeKeepsAllDimensions()
+  {
+    requestsRefillStrategy.addTokens(REQUESTS);
+    bytesRefillStrategy.addTokens(50);
+
+    assertFalse(bucket.tryConsume(new long[]{1, 100}));
+    assertEquals(REQUESTS, bucket.getNumTokens(0));
+    assertEquals(50, bucket.getNumTokens(1));
+  }
+
+  @Test
+  public void testTryConsumeZeroInOneDimension()
+  {
+    bytesRefillStrategy.addTokens(BYTES);
+
+    assertTrue(bucket.tryConsume(new long[]{0, BYTES}));
+    assertEquals(0, bucket.getNumTokens(1));
+  }
+
+  @Test
+  public void testConsume()
+  {
+    requestsRefillStrategy.addTokens(1);
+    bytesRefillStrategy.addTokens(BYTES);
+
+    bucket.consume(new long[]{1, BYTES});
+    assertEquals(0, bucket.getNumTokens(0));
+    assertEquals(0, bucket.getNumTokens(1));
+  }
+
+  @Test
+  public void testManualRefill()
+  {
+    bucket.refill(1, BYTES + 1);
+    assertEquals(0, bucket.getNumTokens(0));
+    assertEquals(BYTES, bucket.getNumTokens(1));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testTryConsumeWrongNumberOfDimensions()
+  {
+    bucket.tryConsume(new long[]{1});
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testTryConsumeNoTokens()
+  {
+    bucket.tryConsume(new long[]{0, 0});
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testTryConsumeNegativeTokens()
+  {
+    bucket.tryConsume(new long[]{1, -1});
+  }
+
+  @Test
+  public void testRefillFullDimensionWithHugeCapacity()
+  {
+    MultiTokenBucketImpl bucket = new MultiTokenBucketImpl(new long[]{Long.MAX_VALUE}, new long[]{Long.MAX_VALUE},
+        new TokenBucket.RefillStrategy[]{requestsRefillStrategy}, sleepStrategy);
+
+    bucket.refill(0, 1);
+    assertEquals(Long.MAX_VALUE, bucket.getNumTokens(0));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testTryConsumeMoreThanCapacityTokens()
+  {
+    bucket.tryConsume(new long[]{1, BYTES + 1});
+  }
+
+  @Test(expected = IndexOutOfBoundsException.class)
+  public void testGetNumTokensOfUnknownDimension()
+  {
+    bucket.getNumTokens(2);
+  }
+
+  private static final class MockRefillStrategy implements TokenBucket.RefillStrategy
+  {
+    private long numTokensToAdd = 0;
+
+    public long refill()
+    {
+      long numTokens = numTokensToAdd;
+      numTokensToAdd = 0;
+      return numTokens;
+    }
+
+    @Override
+    public long getDurationUntilNextRefill(TimeUnit unit) throws UnsupportedOperationException
+    {
+      throw new UnsupportedOperationException();
+    }
+
+    public void addTokens(long numTokens)
+    {
+      numTokensToAdd += numTokens;
+    }
+  }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2012-2014 Brandon Beck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.isomorphism.util;
+
+import com.google.common.base.Ticker;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class QuotaBucketsTest
+{
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private Path file;
+  private QuotaBuckets quotas;
+
+  @Before
+  public void setUp() throws IOException
+  {
+    file = folder.getRoot().toPath().resolve("quotas.conf");
+    write("tenant-a 100 10 1 HOURS",
+          "tenant-* 50 5 1 HOURS");
+    quotas = QuotaBuckets.load(file);
+  }
+
+  @After
+  public void tearDown() throws IOException
+  {
+    quotas.close();
+  }
+
+  @Test
+  public void testBucketPerKey()
+  {
+    TokenBucket a = quotas.getBucket("tenant-a");
+    TokenBucket b = quotas.getBucket("tenant-b");
+
+    assertEquals(100, a.getCapacity());
+    assertEquals(50, b.getCapacity());
+    assertSame(a, quotas.getBucket("tenant-a"));
+    assertNotSame(b, quotas.getBucket("tenant-c"));
+  }
+
+  @Test
+  public void testBucketStartsFull()
+  {
+    assertEquals(100, quotas.getBucket("tenant-a").getNumTokens());
+  }
+
+  @Test
+  public void testNoMatchingRule()
+  {
+    assertNull(quotas.getBucket("other"));
+  }
+
+  @Test
+  public void testMissIsCachedUntilReload() throws IOException
+  {
+    assertNull(quotas.getBucket("other"));
+    assertNull(quotas.getBucket("other"));
+    assertEquals(1, quotas.getNumKeys());
+
+    write("other 10 1 1 HOURS");
+    quotas.reload();
+
+    assertEquals(10, quotas.getBucket("other").getCapacity());
+  }
+
+  @Test
+  public void testIdleBucketsAreEvicted() throws IOException
+  {
+    MockTicker ticker = new MockTicker();
+    QuotaBuckets quotas = QuotaBuckets.load(file, ticker);
+
+    TokenBucket b = quotas.getBucket("tenant-b");
+    assertTrue(b.tryConsume(10));
+    ticker.advance(9, TimeUnit.HOURS);
+    TokenBucket c = quotas.getBucket("tenant-c");
+
+    // After 10 hours tenant-b's bucket would have refilled 50 tokens at 5 an hour, so it's no different to a new one.
+    ticker.advance(1, TimeUnit.HOURS);
+    quotas.reload();
+
+    assertNotSame(b, quotas.getBucket("tenant-b"));
+    assertEquals(50, quotas.getBucket("tenant-b").getNumTokens());
+    assertSame(c, quotas.getBucket("tenant-c"));
+  }
+
+  @Test
+  public void testNumKeysIsBounded() throws IOException
+  {
+    MockTicker ticker = new MockTicker();
+    QuotaBuckets quotas = QuotaBuckets.load(file, ticker);
+
+    for (int i = 0; i < 10000; i++) {
+      quotas.getBucket("tenant-" + i);
+      quotas.getBucket("other-" + i);
+      ticker.advance(1, TimeUnit.HOURS);
+    }
+
+    assertTrue(quotas.getNumKeys() < 4096);
+  }
+
+  @Test
+  public void testReloadKeepsUntouchedBuckets() throws IOException
+  {
+    TokenBucket bucket = quotas.getBucket("tenant-a");
+    assertTrue(bucket.tryConsume(40));
+    long numTokens = bucket.getNumTokens();
+
+    write("tenant-a 100 10 1 HOURS",
+          "tenant-* 20 5 1 HOURS");
+    quotas.reload();
+
+    assertSame(bucket, quotas.getBucket("tenant-a"));
+    assertEquals(numTokens, bucket.getNumTokens());
+  }
+
+  @Test
+  public void testReloadUpdatesChangedBucketsInPlace() throws IOException
+  {
+    TokenBucket bucket = quotas.getBucket("tenant-b");
+    assertTrue(bucket.tryConsume(10));
+
+    write("tenant-a 100 10 1 HOURS",
+          "tenant-* 200 5 1 HOURS");
+    quotas.reload();
+
+    assertSame(bucket, quotas.getBucket("tenant-b"));
+    assertEquals(200, bucket.getCapacity());
+    assertEquals(40, bucket.getNumTokens());
+  }
+
+  @Test
+  public void testReloadRebuildsBucketsWithNewRule() throws IOException
+  {
+    TokenBucket b = quotas.getBucket("tenant-b");
+    TokenBucket c = quotas.getBucket("tenant-c");
+
+    write("tenant-a 100 10 1 HOURS",
+          "tenant-b 10 1 1 HOURS",
+          "tenant-* 50 5 1 HOURS");
+    quotas.reload();
+
+    assertNotSame(b, quotas.getBucket("tenant-b"));
+    assertEquals(10, quotas.getBucket("tenant-b").getCapacity());
+    assertSame(c, quotas.getBucket("tenant-c"));
+  }
+
+  @Test
+  public void testReloadRemovesRule() throws IOException
+  {
+    quotas.getBucket("tenant-b");
+
+    write("tenant-a 100 10 1 HOURS");
+    quotas.reload();
+
+    assertNull(quotas.getBucket("tenant-b"));
+  }
+
+  @Test
+  public void testInvalidReloadKeepsRules() throws IOException
+  {
+    TokenBucket bucket = quotas.getBucket("tenant-a");
+
+    write("tenant-a 100 10");
+    try {
+      quotas.reload();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+
+    assertSame(bucket, quotas.getBucket("tenant-a"));
+    assertEquals(50, quotas.getBucket("tenant-b").getCapacity());
+  }
+
+  @Test
+  public void testWatchReloadsOnChange() throws Exception
+  {
+    quotas.watch();
+
+    TokenBucket bucket = quotas.getBucket("tenant-a");
+    write("tenant-a 500 10 1 HOURS");
+
+    // Give the watcher a generous amount of time to notice the change.
+    for (int i = 0; i < 1000 && bucket.getCapacity() != 500; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(500, bucket.getCapacity());
+    assertSame(bucket, quotas.getBucket("tenant-a"));
+  }
+
+  private void write(String... lines) throws IOException
+  {
+    Files.write(file, Arrays.asList(lines), StandardCharsets.UTF_8);
+  }
+
+  private static final class MockTicker extends Ticker
+  {
+    private long now = 0;
+
+    @Override
+    public long read()
+    {
+      return now;
+    }
+
+    public void advance(long delta, TimeUnit unit)
+    {
+      now += unit.toNanos(delta);
+    }
+  }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2012-2014 Brandon Beck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.isomorphism.util;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class QuotaRulesTest
+{
+  private final QuotaRules rules = QuotaRules.parse(ImmutableList.of(
+      "# pattern     capacity  refill  period  unit",
+      "tenant-a      100       10      1       SECONDS",
+      "tenant-*      50        5       1       SECONDS",
+      "tenant-ab*    20        2       1       SECONDS",
+      "",
+      "\tpremium-*\t1000\t100\t1\tMINUTES"));
+
+  @Test
+  public void testParse()
+  {
+    assertEquals(4, rules.getRules().size());
+
+    QuotaRules.Rule rule = rules.getRules().get("premium-*");
+    assertEquals(1000, rule.capacity);
+    assertEquals(100, rule.refillTokens);
+    assertEquals(1, rule.period);
+    assertEquals(TimeUnit.MINUTES, rule.unit);
+  }
+
+  @Test
+  public void testExactMatch()
+  {
+    assertEquals("tenant-a", rules.match("tenant-a").pattern);
+  }
+
+  @Test
+  public void testPrefixMatch()
+  {
+    assertEquals("tenant-*", rules.match("tenant-b").pattern);
+    assertEquals("tenant-*", rules.match("tenant-").pattern);
+    assertEquals("premium-*", rules.match("premium-x").pattern);
+  }
+
+  @Test
+  public void testLongestPrefixMatch()
+  {
+    assertEquals("tenant-ab*", rules.match("tenant-abc").pattern);
+    assertEquals("tenant-*", rules.match("tenant-ac").pattern);
+  }
+
+  @Test
+  public void testNoMatch()
+  {
+    assertNull(rules.match("tenant"));
+    assertNull(rules.match("other"));
+    assertNull(rules.match(""));
+  }
+
+  @Test
+  public void testCatchAll()
+  {
+    QuotaRules rules = QuotaRules.parse(ImmutableList.of("* 1 1 1 SECONDS", "a* 2 1 1 SECONDS"));
+
+    assertEquals("*", rules.match("").pattern);
+    assertEquals("*", rules.match("other").pattern);
+    assertEquals("a*", rules.match("abc").pattern);
+  }
+
+  @Test
+  public void testSameLimits()
+  {
+    QuotaRules.Rule rule = new QuotaRules.Rule("a", 10, 1, 1, TimeUnit.SECONDS);
+
+    assertTrue(rule.hasSameLimits(new QuotaRules.Rule("b", 10, 1, 1000, TimeUnit.MILLISECONDS)));
+    assertTrue(!rule.hasSameLimits(new QuotaRules.Rule("a", 10, 2, 1, TimeUnit.SECONDS)));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testWrongNumberOfFields()
+  {
+    QuotaRules.parse(ImmutableList.of("tenant-a 100 10 1"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testStarInsidePattern()
+  {
+    QuotaRules.parse(ImmutableList.of("tenant-*-a 100 10 1 SECONDS"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testDuplicatePattern()
+  {
+    QuotaRules.parse(ImmutableList.of("tenant-a 100 10 1 SECONDS", "tenant-a 50 10 1 SECONDS"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidNumber()
+  {
+    QuotaRules.parse(ImmutableList.of("tenant-a lots 10 1 SECONDS"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidUnit()
+  {
+    QuotaRules.parse(ImmutableList.of("tenant-a 100 10 1 FORTNIGHTS"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testZeroCapacity()
+  {
+    QuotaRules.parse(ImmutableList.of("tenant-a 0 10 1 SECONDS"));
+  }
+}
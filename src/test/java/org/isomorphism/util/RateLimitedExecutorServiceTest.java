@@ -0,0 +1,265 @@
+/*
+ * Copyright 2012-2014 Brandon Beck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.isomorphism.util;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RateLimitedExecutorServiceTest
+{
+  private static final long CAPACITY = 10;
+  private static final int QUEUE_SIZE = 2;
+
+  private final TokenBucketImpl bucket = new TokenBucketImpl(CAPACITY, 0, new NeverRefillStrategy(), NO_SLEEP);
+  private final ScheduledExecutorService delegate = Executors.newSingleThreadScheduledExecutor();
+  private final RateLimitedExecutorService executor = new RateLimitedExecutorService(bucket, delegate, QUEUE_SIZE);
+
+  @After
+  public void tearDown()
+  {
+    executor.shutdownNow();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testZeroQueueSize()
+  {
+    new RateLimitedExecutorService(bucket, delegate, 0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMoreTokensThanCapacity()
+  {
+    executor.execute(new CountDownRunnable(new CountDownLatch(1)), CAPACITY + 1);
+  }
+
+  @Test
+  public void testRunsImmediatelyWhenTokensAvailable() throws InterruptedException
+  {
+    bucket.refill(1);
+
+    CountDownLatch latch = new CountDownLatch(1);
+    executor.execute(new CountDownRunnable(latch));
+
+    assertTrue(latch.await(1, TimeUnit.SECONDS));
+    assertEquals(0, bucket.getNumTokens());
+  }
+
+  @Test
+  public void testQueuedUntilTokensAvailable() throws InterruptedException
+  {
+    CountDownLatch latch = new CountDownLatch(1);
+    executor.execute(new CountDownRunnable(latch));
+
+    assertFalse(latch.await(10, TimeUnit.MILLISECONDS));
+    assertEquals(1, executor.getQueueSize());
+
+    bucket.refill(1);
+    assertTrue(latch.await(1, TimeUnit.SECONDS));
+    assertEquals(0, executor.getQueueSize());
+  }
+
+  @Test
+  public void testTaskCost() throws InterruptedException
+  {
+    bucket.refill(2);
+
+    CountDownLatch latch = new CountDownLatch(1);
+    executor.execute(new CountDownRunnable(latch), 3);
+
+    assertFalse(latch.await(10, TimeUnit.MILLISECONDS));
+
+    bucket.refill(1);
+    assertTrue(latch.await(1, TimeUnit.SECONDS));
+    assertEquals(0, bucket.getNumTokens());
+  }
+
+  @Test
+  public void testTasksRunInOrder() throws InterruptedException
+  {
+    CountDownLatch first = new CountDownLatch(1);
+    CountDownLatch second = new CountDownLatch(1);
+    executor.execute(new CountDownRunnable(first), 2);
+    executor.execute(new CountDownRunnable(second), 1);
+
+    // The second task is cheap enough to run but must wait behind the first one.
+    bucket.refill(1);
+    assertFalse(second.await(10, TimeUnit.MILLISECONDS));
+
+    bucket.refill(2);
+    assertTrue(first.await(1, TimeUnit.SECONDS));
+    assertTrue(second.await(1, TimeUnit.SECONDS));
+  }
+
+  @Test(expected = RejectedExecutionException.class)
+  public void testFullQueueRejects()
+  {
+    for (int i = 0; i < QUEUE_SIZE + 1; i++) {
+      executor.execute(new CountDownRunnable(new CountDownLatch(1)));
+    }
+  }
+
+  @Test(expected = RejectedExecutionException.class)
+  public void testShutdownRejects()
+  {
+    executor.shutdown();
+    executor.execute(new CountDownRunnable(new CountDownLatch(1)));
+  }
+
+  @Test
+  public void testShutdownDispatchesQueuedTasks() throws InterruptedException
+  {
+    CountDownLatch latch = new CountDownLatch(1);
+    executor.execute(new CountDownRunnable(latch));
+    executor.shutdown();
+
+    assertFalse(executor.isTerminated());
+
+    bucket.refill(1);
+    assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+    assertEquals(0, latch.getCount());
+  }
+
+  @Test
+  public void testShutdownNowReturnsQueuedTasks()
+  {
+    Runnable task = new CountDownRunnable(new CountDownLatch(1));
+    executor.execute(task);
+
+    List<Runnable> tasks = executor.shutdownNow();
+    assertTrue(tasks.contains(task));
+    assertEquals(0, executor.getQueueSize());
+  }
+
+  @Test
+  public void testShutdownNowDoesNotReturnDispatcher()
+  {
+    // The queued task makes sure a dispatch is scheduled on the delegate.
+    Runnable task = new CountDownRunnable(new CountDownLatch(1));
+    executor.execute(task);
+
+    assertEquals(Collections.singletonList(task), executor.shutdownNow());
+  }
+
+  @Test
+  public void testRejectedByDelegateFailsOnlyThatTask() throws Exception
+  {
+    bucket.refill(1);
+    delegate.shutdown();
+
+    // The submitter's own task is failed through its future rather than with an exception from submit.
+    Future<String> future = executor.submit(new ConstantCallable("rejected"), 1);
+    try {
+      future.get(1, TimeUnit.SECONDS);
+      fail();
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof RejectedExecutionException);
+    }
+
+    // The tokens it would have cost are given back.
+    assertEquals(1, bucket.getNumTokens());
+    assertEquals(0, executor.getQueueSize());
+  }
+
+  @Test
+  public void testTaskThatNoLongerFitsDoesNotStallQueue() throws Exception
+  {
+    Future<String> tooBig = executor.submit(new ConstantCallable("too big"), 5);
+    CountDownLatch latch = new CountDownLatch(1);
+    executor.execute(new CountDownRunnable(latch), 1);
+
+    bucket.setCapacity(4);
+    bucket.refill(1);
+
+    assertTrue(latch.await(1, TimeUnit.SECONDS));
+    try {
+      tooBig.get(1, TimeUnit.SECONDS);
+      fail();
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IllegalArgumentException);
+    }
+  }
+
+  private static final TokenBucket.SleepStrategy NO_SLEEP = new TokenBucket.SleepStrategy()
+  {
+    @Override
+    public void sleep()
+    {
+    }
+  };
+
+  private static final class NeverRefillStrategy implements TokenBucket.RefillStrategy
+  {
+    @Override
+    public long refill()
+    {
+      return 0;
+    }
+
+    @Override
+    public long getDurationUntilNextRefill(TimeUnit unit)
+    {
+      return unit.convert(1, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private static final class ConstantCallable implements Callable<String>
+  {
+    private final String value;
+
+    ConstantCallable(String value)
+    {
+      this.value = value;
+    }
+
+    @Override
+    public String call()
+    {
+      return value;
+    }
+  }
+
+  private static final class CountDownRunnable implements Runnable
+  {
+    private final CountDownLatch latch;
+
+    CountDownRunnable(CountDownLatch latch)
+    {
+      this.latch = latch;
+    }
+
+    @Override
+    public void run()
+    {
+      latch.countDown();
+    }
+  }
+}
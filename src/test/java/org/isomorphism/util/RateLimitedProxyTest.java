@@ -0,0 +1,249 @@
+/*
+ * Copyright 2012-2014 Brandon Beck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.isomorphism.util;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+
+public class RateLimitedProxyTest
+{
+  private static final long CAPACITY = 10;
+
+  private final TokenBucket.SleepStrategy sleepStrategy = mock(TokenBucket.SleepStrategy.class);
+  private final TokenBucketImpl bucket = new TokenBucketImpl(CAPACITY, 0, new NeverRefillStrategy(), sleepStrategy);
+  private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+  private final Service target = new ServiceImpl();
+
+  @After
+  public void tearDown()
+  {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testUnboundMethodPassesThrough()
+  {
+    Service service = newBuilder().build(target);
+
+    assertEquals("unlimited", service.unlimited());
+  }
+
+  @Test
+  public void testAnnotatedMethodConsumesTokens()
+  {
+    Service service = newBuilder().build(target);
+
+    bucket.refill(CAPACITY);
+    assertEquals("blocking", service.blocking());
+    assertEquals(CAPACITY - 2, bucket.getNumTokens());
+  }
+
+  @Test
+  public void testRejectWhenNoTokens()
+  {
+    Service service = newBuilder().build(target);
+
+    try {
+      service.rejecting();
+      fail();
+    } catch (RateLimitExceededException e) {
+      // expected
+    }
+
+    bucket.refill(1);
+    assertEquals("rejecting", service.rejecting());
+  }
+
+  @Test
+  public void testMethodBindingOverridesAnnotation()
+  {
+    TokenBucketImpl other = new TokenBucketImpl(CAPACITY, CAPACITY, new NeverRefillStrategy(), sleepStrategy);
+    Service service = newBuilder()
+        .withMethod("rejecting", other, 3, RateLimited.Mode.REJECT)
+        .withMethod("unlimited", other, 1, RateLimited.Mode.BLOCK)
+        .build(target);
+
+    assertEquals("rejecting", service.rejecting());
+    assertEquals("unlimited", service.unlimited());
+    assertEquals(CAPACITY - 4, other.getNumTokens());
+  }
+
+  @Test
+  public void testAsyncWaitsForTokens() throws Exception
+  {
+    Service service = newBuilder().build(target);
+
+    ListenableFuture<String> future = service.async();
+    Thread.sleep(10);
+    assertFalse(future.isDone());
+
+    bucket.refill(1);
+    assertEquals("async", future.get(1, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testAsyncFailsWithReasonWhenTokensAreRefused() throws Exception
+  {
+    Service service = newBuilder()
+        .withMethod("async", bucket, 5, RateLimited.Mode.ASYNC)
+        .build(target);
+
+    ListenableFuture<String> future = service.async();
+    bucket.setCapacity(4);
+    try {
+      future.get(1, TimeUnit.SECONDS);
+      fail();
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IllegalArgumentException);
+    }
+  }
+
+  @Test
+  public void testExceptionsAreUnwrapped()
+  {
+    Service service = newBuilder()
+        .withMethod("failing", bucket, 1, RateLimited.Mode.BLOCK)
+        .build(target);
+
+    bucket.refill(1);
+    try {
+      service.failing();
+      fail();
+    } catch (IllegalStateException e) {
+      assertEquals("failing", e.getMessage());
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnknownBucketName()
+  {
+    RateLimitedProxy.builder(Service.class).build(target);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnknownMethodName()
+  {
+    newBuilder()
+        .withMethod("blockng", bucket, 1, RateLimited.Mode.BLOCK)
+        .build(target);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testAsyncWithoutExecutor()
+  {
+    RateLimitedProxy.builder(Service.class)
+        .withBucket("calls", bucket)
+        .build(target);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testAsyncMethodMustReturnFuture()
+  {
+    newBuilder()
+        .withMethod("blocking", bucket, 1, RateLimited.Mode.ASYNC)
+        .build(target);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testOnlyInterfaces()
+  {
+    RateLimitedProxy.builder(ServiceImpl.class);
+  }
+
+  private RateLimitedProxy.Builder<Service> newBuilder()
+  {
+    return RateLimitedProxy.builder(Service.class)
+        .withBucket("calls", bucket)
+        .withExecutor(executor, 10);
+  }
+
+  public interface Service
+  {
+    String unlimited();
+
+    @RateLimited(value = "calls", tokens = 2)
+    String blocking();
+
+    @RateLimited(value = "calls", mode = RateLimited.Mode.REJECT)
+    String rejecting();
+
+    @RateLimited(value = "calls", mode = RateLimited.Mode.ASYNC)
+    ListenableFuture<String> async();
+
+    String failing();
+  }
+
+  private static final class ServiceImpl implements Service
+  {
+    @Override
+    public String unlimited()
+    {
+      return "unlimited";
+    }
+
+    @Override
+    public String blocking()
+    {
+      return "blocking";
+    }
+
+    @Override
+    public String rejecting()
+    {
+      return "rejecting";
+    }
+
+    @Override
+    public ListenableFuture<String> async()
+    {
+      return Futures.immediateFuture("async");
+    }
+
+    @Override
+    public String failing()
+    {
+      throw new IllegalStateException("failing");
+    }
+  }
+
+  private static final class NeverRefillStrategy implements TokenBucket.RefillStrategy
+  {
+    @Override
+    public long refill()
+    {
+      return 0;
+    }
+
+    @Override
+    public long getDurationUntilNextRefill(TimeUnit unit)
+    {
+      return unit.convert(1, TimeUnit.MILLISECONDS);
+    }
+  }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2012-2014 Brandon Beck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.isomorphism.util;
+
+import com.google.common.base.Ticker;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+public class RefillSchedulerTest
+{
+  private static final long CAPACITY = 10;
+  private static final long N = 5;                     // 5 tokens
+  private static final long P = 10;                    // every 10
+  private static final TimeUnit U = TimeUnit.SECONDS;  // seconds
+
+  private final MockTicker ticker = new MockTicker();
+  private final TokenBucket.SleepStrategy sleepStrategy = mock(TokenBucket.SleepStrategy.class);
+  private final RefillScheduler scheduler = new RefillScheduler(ticker, P, U, null);
+  private final TokenBucketImpl bucket = newBucket(N);
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testZeroPeriod()
+  {
+    new RefillScheduler(ticker, 0, U, null);
+  }
+
+  @Test
+  public void testNoLazyRefill()
+  {
+    ticker.advance(10 * P, U);
+    assertEquals(0, bucket.getNumTokens());
+  }
+
+  @Test
+  public void testRefillAll()
+  {
+    TokenBucketImpl other = newBucket(1);
+
+    scheduler.refillAll();
+    assertEquals(N, bucket.getNumTokens());
+    assertEquals(1, other.getNumTokens());
+
+    scheduler.refillAll();
+    scheduler.refillAll();
+    assertEquals(CAPACITY, bucket.getNumTokens());
+    assertEquals(3, other.getNumTokens());
+  }
+
+  @Test
+  public void testConsumeAfterRefill()
+  {
+    assertFalse(bucket.tryConsume());
+
+    scheduler.refillAll();
+    assertTrue(bucket.tryConsume(N));
+    assertFalse(bucket.tryConsume());
+  }
+
+  @Test
+  public void testEstimatedWaitUsesScheduledRefills()
+  {
+    scheduler.refillAll();
+    assertTrue(bucket.tryConsume(N));
+
+    // 2N tokens take 2 more refills, the first of them in P.
+    assertEquals(2 * P, bucket.getEstimatedWait(2 * N, U));
+  }
+
+  @Test
+  public void testDurationUntilNextRefill()
+  {
+    assertEquals(P, bucket.getDurationUntilNextRefill(U));
+
+    ticker.advance(P - 1, U);
+    assertEquals(1, bucket.getDurationUntilNextRefill(U));
+
+    ticker.advance(1, U);
+    scheduler.refillAll();
+    assertEquals(P, bucket.getDurationUntilNextRefill(U));
+  }
+
+  @Test
+  public void testBuilderRegistersBucket()
+  {
+    assertEquals(1, scheduler.getNumBuckets());
+
+    TokenBucket other = TokenBuckets.builder()
+        .withCapacity(CAPACITY)
+        .withScheduledRefillStrategy(scheduler, N)
+        .build();
+
+    assertEquals(2, scheduler.getNumBuckets());
+
+    scheduler.refillAll();
+    assertEquals(N, other.getNumTokens());
+  }
+
+  @Test
+  public void testBuilderWithLaterRefillStrategy()
+  {
+    TokenBuckets.builder()
+        .withCapacity(CAPACITY)
+        .withScheduledRefillStrategy(scheduler, N)
+        .withFixedIntervalRefillStrategy(N, P, U)
+        .build();
+
+    assertEquals(1, scheduler.getNumBuckets());
+  }
+
+  @Test
+  public void testBackgroundRefill()
+  {
+    RefillScheduler scheduler = new RefillScheduler(1, TimeUnit.MILLISECONDS);
+    try {
+      TokenBucket bucket = TokenBuckets.builder()
+          .withCapacity(CAPACITY)
+          .withScheduledRefillStrategy(scheduler, 1)
+          .withBusyWaitSleepStrategy()
+          .build();
+
+      // Blocks until the scheduler's thread has pushed a token into the bucket.
+      bucket.consume();
+    } finally {
+      scheduler.shutdown();
+    }
+  }
+
+  private TokenBucketImpl newBucket(long numTokensPerPeriod)
+  {
+    TokenBucketImpl bucket = new TokenBucketImpl(CAPACITY, 0, scheduler.getRefillStrategy(), sleepStrategy);
+    scheduler.register(bucket, numTokensPerPeriod);
+    return bucket;
+  }
+
+  private static final class MockTicker extends Ticker
+  {
+    private long now = 0;
+
+    @Override
+    public long read()
+    {
+      return now;
+    }
+
+    public void advance(long delta, TimeUnit unit)
+    {
+      now += unit.toNanos(delta);
+    }
+  }
+}
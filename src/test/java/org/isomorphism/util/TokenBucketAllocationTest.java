@@ -0,0 +1,114 @@
+/*
+ * Copyright 2012-2014 Brandon Beck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.isomorphism.util;
+
+import com.google.common.base.Ticker;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Verifies that the hot paths of the token bucket don't allocate when no flight recording is capturing its events.
+ * Allocation is measured with the per-thread allocation counter, averaged over enough calls that the bookkeeping of
+ * the measurement itself rounds away.
+ */
+public class TokenBucketAllocationTest
+{
+  private static final int WARMUP_CALLS = 200000;
+  private static final int MEASURED_CALLS = 1000000;
+
+  private com.sun.management.ThreadMXBean threadBean;
+
+  @Before
+  public void setUp()
+  {
+    assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+
+    threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+    threadBean.setThreadAllocatedMemoryEnabled(true);
+  }
+
+  @Test
+  public void testTryConsumeDoesNotAllocate()
+  {
+    final TokenBucketImpl bucket = newBucket();
+
+    assertEquals(0, bytesPerCall(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        // Alternate between granted and denied consumes so that both paths are exercised.
+        bucket.refill(1);
+        bucket.tryConsume();
+        bucket.tryConsume();
+      }
+    }));
+  }
+
+  @Test
+  public void testRefillDoesNotAllocate()
+  {
+    final FixedIntervalRefillStrategy strategy =
+        new FixedIntervalRefillStrategy(Ticker.systemTicker(), 1, 1, TimeUnit.NANOSECONDS);
+
+    assertEquals(0, bytesPerCall(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        strategy.refill();
+      }
+    }));
+  }
+
+  private static TokenBucketImpl newBucket()
+  {
+    TokenBucket.RefillStrategy refillStrategy =
+        new FixedIntervalRefillStrategy(Ticker.systemTicker(), 1, 1, TimeUnit.HOURS);
+    TokenBucket.SleepStrategy sleepStrategy = new TokenBucket.SleepStrategy()
+    {
+      @Override
+      public void sleep()
+      {
+      }
+    };
+
+    return new TokenBucketImpl(1, 0, refillStrategy, sleepStrategy);
+  }
+
+  private long bytesPerCall(Runnable call)
+  {
+    for (int i = 0; i < WARMUP_CALLS; i++) {
+      call.run();
+    }
+
+    long threadId = Thread.currentThread().getId();
+    long before = threadBean.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < MEASURED_CALLS; i++) {
+      call.run();
+    }
+    long after = threadBean.getThreadAllocatedBytes(threadId);
+
+    return (after - before) / MEASURED_CALLS;
+  }
+}
@@ -17,6 +17,11 @@ package org.isomorphism.util;
 
 import org.junit.Test;
 
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
 public class TokenBucketBuilderTest
 {
   private final TokenBuckets.Builder builder = TokenBuckets.builder();
@@ -35,4 +40,28 @@ public class TokenBucketBuilderTest
   public void testNegativeInitialTokens() {
     builder.withInitialTokens(-1);
   }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNegativeMaxDebt() {
+    builder.withMaxDebt(-1);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testReservedTokensForLowestPriority() {
+    builder.withReservedTokens(0, 1);
+  }
+
+  @Test
+  public void testReservedTokens() {
+    TokenBucket bucket = builder
+        .withCapacity(10)
+        .withInitialTokens(10)
+        .withFixedIntervalRefillStrategy(1, 1, TimeUnit.HOURS)
+        .withReservedTokens(2, 4)
+        .build();
+
+    assertTrue(bucket.tryConsume(6, 1));
+    assertFalse(bucket.tryConsume(1, 1));
+    assertTrue(bucket.tryConsume(4, 2));
+  }
 }
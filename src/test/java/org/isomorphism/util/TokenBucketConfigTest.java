@@ -0,0 +1,134 @@
+/*
+ * Copyright 2012-2014 Brandon Beck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.isomorphism.util;
+
+import com.google.common.base.Ticker;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+public class TokenBucketConfigTest
+{
+  private static final long CAPACITY = 10;
+  private static final long N = 5;                     // 5 tokens
+  private static final long P = 10;                    // every 10
+  private static final TimeUnit U = TimeUnit.SECONDS;  // seconds
+
+  private final MockTicker ticker = new MockTicker();
+  private final TokenBucket.SleepStrategy sleepStrategy = mock(TokenBucket.SleepStrategy.class);
+  private final TokenBucketConfig config = new TokenBucketConfig(CAPACITY, N, P, U);
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testZeroCapacity()
+  {
+    new TokenBucketConfig(0, N, P, U);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUpdateWithZeroPeriod()
+  {
+    config.update(CAPACITY, N, 0, U);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMoreInitialTokensThanCapacity()
+  {
+    config.newBucket(ticker, CAPACITY + 1, sleepStrategy);
+  }
+
+  @Test
+  public void testNewBucketUsesConfig()
+  {
+    TokenBucket bucket = config.newBucket(ticker, 0, sleepStrategy);
+
+    assertEquals(CAPACITY, bucket.getCapacity());
+    assertEquals(N, bucket.getNumTokens());
+    assertEquals(1, config.getNumBuckets());
+  }
+
+  @Test
+  public void testUpdateAppliesToAllBuckets()
+  {
+    TokenBucket first = config.newBucket(ticker, CAPACITY, sleepStrategy);
+    TokenBucket second = config.newBucket(ticker, CAPACITY, sleepStrategy);
+
+    config.update(CAPACITY / 2, 1, 1, U);
+
+    // Existing tokens are clamped to the new capacity.
+    assertEquals(CAPACITY / 2, first.getCapacity());
+    assertEquals(CAPACITY / 2, first.getNumTokens());
+    assertEquals(CAPACITY / 2, second.getCapacity());
+    assertEquals(CAPACITY / 2, second.getNumTokens());
+  }
+
+  @Test
+  public void testUpdateKeepsTokens()
+  {
+    TokenBucket bucket = config.newBucket(ticker, 0, sleepStrategy);
+    assertTrue(bucket.tryConsume(N - 1));
+
+    config.update(2 * CAPACITY, N, P, U);
+    assertEquals(1, bucket.getNumTokens());
+  }
+
+  @Test
+  public void testUpdateChangesRefillRate()
+  {
+    TokenBucket bucket = config.newBucket(ticker, 0, sleepStrategy);
+    assertTrue(bucket.tryConsume(N));
+
+    config.update(CAPACITY, 1, 1, U);
+    assertFalse(bucket.tryConsume());
+
+    ticker.advance(1, U);
+    assertTrue(bucket.tryConsume());
+    assertFalse(bucket.tryConsume());
+  }
+
+  @Test
+  public void testBuilderWithConfig()
+  {
+    TokenBucket bucket = TokenBuckets.builder()
+        .withConfig(config)
+        .build();
+
+    assertEquals(CAPACITY, bucket.getCapacity());
+
+    config.update(2 * CAPACITY, N, P, U);
+    assertEquals(2 * CAPACITY, bucket.getCapacity());
+  }
+
+  private static final class MockTicker extends Ticker
+  {
+    private long now = 0;
+
+    @Override
+    public long read()
+    {
+      return now;
+    }
+
+    public void advance(long delta, TimeUnit unit)
+    {
+      now += unit.toNanos(delta);
+    }
+  }
+}
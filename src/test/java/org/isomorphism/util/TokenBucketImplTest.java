@@ -18,11 +18,15 @@ package org.isomorphism.util;
 import org.junit.Test;
 
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 
 public class TokenBucketImplTest
 {
@@ -217,9 +221,481 @@ public class TokenBucketImplTest
     assertFalse(bucket.tryConsume(1));
   }
 
+  @Test
+  public void testIncreaseCapacityKeepsTokens()
+  {
+    refillStrategy.addTokens(CAPACITY);
+    bucket.setCapacity(2 * CAPACITY);
+
+    assertEquals(2 * CAPACITY, bucket.getCapacity());
+    assertEquals(CAPACITY, bucket.getNumTokens());
+
+    refillStrategy.addTokens(CAPACITY);
+    assertTrue(bucket.tryConsume(2 * CAPACITY));
+  }
+
+  @Test
+  public void testDecreaseCapacityClampsTokens()
+  {
+    refillStrategy.addTokens(CAPACITY);
+    bucket.setCapacity(CAPACITY / 2);
+
+    assertEquals(CAPACITY / 2, bucket.getNumTokens());
+  }
+
+  @Test
+  public void testDecreaseCapacityClampsReservedTokens()
+  {
+    TokenBucketImpl bucket = new TokenBucketImpl(CAPACITY, 0, 0, new long[]{0, 4}, refillStrategy, sleepStrategy);
+    bucket.setCapacity(4);
+
+    // One token is left for the lowest priority rather than starving it.
+    bucket.refill(4);
+    assertTrue(bucket.tryConsume(1, 0));
+    assertFalse(bucket.tryConsume(1, 0));
+
+    // Growing the capacity again restores the full reserve.
+    bucket.setCapacity(CAPACITY);
+    bucket.refill(CAPACITY);
+    assertTrue(bucket.tryConsume(CAPACITY - 4, 0));
+    assertFalse(bucket.tryConsume(1, 0));
+    assertTrue(bucket.tryConsume(4, 1));
+  }
+
+  @Test
+  public void testDecreaseCapacityFailsWaitersThatNoLongerFit() throws InterruptedException
+  {
+    final AtomicReference<RuntimeException> failure = new AtomicReference<RuntimeException>();
+    Thread waiter = new Thread(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        try {
+          bucket.consume(CAPACITY);
+        } catch (RuntimeException e) {
+          failure.set(e);
+        }
+      }
+    });
+    waiter.start();
+    Thread.sleep(50);
+
+    bucket.setCapacity(CAPACITY / 2);
+    waiter.join(1000);
+
+    assertFalse(waiter.isAlive());
+    assertTrue(failure.get() instanceof IllegalArgumentException);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testSetZeroCapacity()
+  {
+    bucket.setCapacity(0);
+  }
+
+  @Test
+  public void testLowPriorityCannotConsumeReservedTokens()
+  {
+    TokenBucketImpl bucket = new TokenBucketImpl(CAPACITY, CAPACITY, 0, new long[]{0, 4}, refillStrategy,
+        sleepStrategy);
+
+    assertTrue(bucket.tryConsume(CAPACITY - 4));
+    assertFalse(bucket.tryConsume());
+    assertTrue(bucket.tryConsume(4, 1));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testTryConsumeMoreThanUnreservedTokens()
+  {
+    TokenBucketImpl bucket = new TokenBucketImpl(CAPACITY, CAPACITY, 0, new long[]{0, 4}, refillStrategy,
+        sleepStrategy);
+    bucket.tryConsume(CAPACITY - 3, 0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConsumeMoreThanUnreservedTokens()
+  {
+    TokenBucketImpl bucket = new TokenBucketImpl(CAPACITY, CAPACITY, 0, new long[]{0, 4}, refillStrategy,
+        sleepStrategy);
+    bucket.consume(CAPACITY - 3, 0);
+  }
+
+  @Test
+  public void testNestedReservedTokens()
+  {
+    // 2 tokens are reserved for priority 2, and 5 for priorities 1 and 2.
+    TokenBucketImpl bucket = new TokenBucketImpl(CAPACITY, CAPACITY, 0, new long[]{0, 5, 2}, refillStrategy,
+        sleepStrategy);
+
+    assertTrue(bucket.tryConsume(CAPACITY - 5, 0));
+    assertFalse(bucket.tryConsume(1, 0));
+    assertTrue(bucket.tryConsume(3, 1));
+    assertFalse(bucket.tryConsume(1, 1));
+    assertTrue(bucket.tryConsume(2, 2));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testReservedTokensForLowestPriority()
+  {
+    new TokenBucketImpl(CAPACITY, 0, 0, new long[]{1}, refillStrategy, sleepStrategy);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testReservedTokensAtCapacity()
+  {
+    new TokenBucketImpl(CAPACITY, 0, 0, new long[]{0, CAPACITY}, refillStrategy, sleepStrategy);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testTryConsumeUnknownPriority()
+  {
+    bucket.tryConsume(1, 1);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConsumeUnknownPriority()
+  {
+    bucket.consume(1, -1);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConsumeFarBelowLowestPriority()
+  {
+    bucket.consume(1, -2);
+  }
+
+  @Test
+  public void testHigherPriorityWaiterServedFirst() throws InterruptedException
+  {
+    final TokenBucketImpl bucket = new TokenBucketImpl(CAPACITY, 0, 0, new long[]{0, 0}, refillStrategy,
+        sleepStrategy);
+
+    Thread high = new Thread(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        bucket.consume(1, 1);
+      }
+    });
+    Thread low = new Thread(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        bucket.consume(1, 0);
+      }
+    });
+
+    high.start();
+    low.start();
+    Thread.sleep(50);
+
+    bucket.refill(1);
+    high.join(1000);
+    assertFalse(high.isAlive());
+    assertTrue(low.isAlive());
+
+    bucket.refill(1);
+    low.join(1000);
+    assertFalse(low.isAlive());
+  }
+
+  @Test
+  public void testSettleForEstimateKeepsTokens()
+  {
+    refillStrategy.addTokens(CAPACITY);
+
+    TokenBucket.Charge charge = bucket.tryCharge(4);
+    charge.settle(4);
+    assertEquals(CAPACITY - 4, bucket.getNumTokens());
+  }
+
+  @Test
+  public void testSettleForLessRefunds()
+  {
+    refillStrategy.addTokens(CAPACITY);
+
+    TokenBucket.Charge charge = bucket.charge(4);
+    assertEquals(4, charge.getEstimatedTokens());
+    assertEquals(CAPACITY - 4, bucket.getNumTokens());
+
+    charge.settle(1);
+    assertEquals(CAPACITY - 1, bucket.getNumTokens());
+  }
+
+  @Test
+  public void testSettleForMoreConsumes()
+  {
+    refillStrategy.addTokens(CAPACITY);
+
+    bucket.tryCharge(4).settle(6);
+    assertEquals(CAPACITY - 6, bucket.getNumTokens());
+  }
+
+  @Test
+  public void testSettleWithoutDebtForgivesExcess()
+  {
+    refillStrategy.addTokens(CAPACITY);
+
+    bucket.tryCharge(CAPACITY).settle(2 * CAPACITY);
+    assertEquals(0, bucket.getNumTokens());
+
+    refillStrategy.addTokens(1);
+    assertTrue(bucket.tryConsume());
+  }
+
+  @Test
+  public void testSettleIntoDebt()
+  {
+    TokenBucketImpl bucket = new TokenBucketImpl(CAPACITY, CAPACITY, 5, new long[1], refillStrategy, sleepStrategy);
+    bucket.tryCharge(CAPACITY).settle(CAPACITY + 3);
+    assertEquals(0, bucket.getNumTokens());
+
+    // The debt has to be paid off before we can consume again.
+    refillStrategy.addTokens(3);
+    assertFalse(bucket.tryConsume());
+    refillStrategy.addTokens(1);
+    assertTrue(bucket.tryConsume());
+  }
+
+  @Test
+  public void testDebtIsBounded()
+  {
+    TokenBucketImpl bucket = new TokenBucketImpl(CAPACITY, CAPACITY, 5, new long[1], refillStrategy, sleepStrategy);
+    bucket.tryCharge(CAPACITY).settle(Long.MAX_VALUE);
+
+    refillStrategy.addTokens(5);
+    assertFalse(bucket.tryConsume());
+    refillStrategy.addTokens(1);
+    assertTrue(bucket.tryConsume());
+  }
+
+  @Test
+  public void testSettleWithHugeMaxDebt()
+  {
+    TokenBucketImpl bucket = new TokenBucketImpl(CAPACITY, 0, Long.MAX_VALUE, new long[1], refillStrategy,
+        sleepStrategy);
+    bucket.refill(1);
+    bucket.tryCharge(1).settle(2);
+
+    // Only the one extra token is owed.
+    bucket.refill(2);
+    assertEquals(1, bucket.getNumTokens());
+  }
+
+  @Test
+  public void testLongIdleWhileInDebtRefillsToCapacity()
+  {
+    TokenBucketImpl bucket = new TokenBucketImpl(CAPACITY, 0, 5, new long[1], refillStrategy, sleepStrategy);
+    bucket.refill(2);
+    bucket.tryCharge(2).settle(7);
+    assertEquals(0, bucket.getNumTokens());
+
+    // Far more than the capacity accrues while idle, which pays off the debt and then fills the bucket.
+    refillStrategy.addTokens(100 * CAPACITY);
+    assertEquals(CAPACITY, bucket.getNumTokens());
+  }
+
+  @Test
+  public void testHugeRefillWhileInHugeDebt()
+  {
+    TokenBucketImpl bucket = new TokenBucketImpl(CAPACITY, CAPACITY, Long.MAX_VALUE, new long[1], refillStrategy,
+        sleepStrategy);
+    bucket.tryCharge(CAPACITY).settle(Long.MAX_VALUE);
+
+    refillStrategy.addTokens(Long.MAX_VALUE);
+    assertEquals(CAPACITY, bucket.getNumTokens());
+  }
+
+  @Test
+  public void testTryChargeOnEmptyBucket()
+  {
+    assertNull(bucket.tryCharge(1));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testSettleTwice()
+  {
+    refillStrategy.addTokens(CAPACITY);
+
+    TokenBucket.Charge charge = bucket.tryCharge(1);
+    charge.settle(1);
+    charge.settle(1);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testSettleNegativeTokens()
+  {
+    refillStrategy.addTokens(CAPACITY);
+    bucket.tryCharge(1).settle(-1);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNegativeMaxDebt()
+  {
+    new TokenBucketImpl(CAPACITY, 0, -1, new long[1], refillStrategy, sleepStrategy);
+  }
+
+  @Test
+  public void testEstimatedWaitWhenTokensAvailable()
+  {
+    bucket.refill(5);
+    assertEquals(0, bucket.getEstimatedWait(5, TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  public void testEstimatedWaitBeforeAnyRefill()
+  {
+    refillStrategy.setDurationUntilNextRefill(40, TimeUnit.MILLISECONDS);
+    assertEquals(40, bucket.getEstimatedWait(5, TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  public void testEstimatedWaitUsesLearnedRefills()
+  {
+    learnRefills(bucket);
+
+    // 5 tokens take 3 refills of 2 tokens, the first in 40ms and then one every 100ms.
+    assertEquals(240, bucket.getEstimatedWait(5, TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  public void testEstimatedWaitIgnoresManualRefills()
+  {
+    learnRefills(bucket);
+
+    // A refund isn't a refill at the bucket's usual rate.
+    bucket.refill(CAPACITY);
+    assertTrue(bucket.tryConsume(CAPACITY));
+    assertEquals(240, bucket.getEstimatedWait(5, TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  public void testEstimatedWaitIncludesWaitingTokens() throws InterruptedException
+  {
+    learnRefills(bucket);
+
+    Thread waiter = new Thread(new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        bucket.consume(4);
+      }
+    });
+    waiter.start();
+    Thread.sleep(50);
+
+    assertEquals(240, bucket.getEstimatedWait(1, TimeUnit.MILLISECONDS));
+
+    bucket.refill(4);
+    waiter.join(1000);
+    assertFalse(waiter.isAlive());
+  }
+
+  @Test
+  public void testEstimatedWaitIncludesDebt()
+  {
+    TokenBucketImpl bucket = new TokenBucketImpl(CAPACITY, 0, CAPACITY, new long[1], refillStrategy, sleepStrategy);
+    bucket.refill(2);
+    learnRefills(bucket);
+    bucket.tryCharge(2).settle(6);
+
+    assertEquals(240, bucket.getEstimatedWait(2, TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  public void testTryConsumeWithTimeoutWhenTokensAvailable()
+  {
+    bucket.refill(5);
+    assertTrue(bucket.tryConsume(5, 0, TimeUnit.MILLISECONDS));
+    assertEquals(0, bucket.getNumTokens());
+  }
+
+  @Test
+  public void testTryConsumeWithTimeoutRejectsDoomedRequest()
+  {
+    learnRefills(bucket);
+
+    assertFalse(bucket.tryConsume(5, 200, TimeUnit.MILLISECONDS));
+    verify(sleepStrategy, never()).sleep();
+  }
+
+  @Test
+  public void testTryConsumeWithTimeoutWaitsForTokens()
+  {
+    TokenBucketImpl bucket = new TokenBucketImpl(CAPACITY, 0, refillStrategy, new TokenBucket.SleepStrategy()
+    {
+      @Override
+      public void sleep()
+      {
+        refillStrategy.addToken();
+      }
+    });
+    refillStrategy.setDurationUntilNextRefill(1, TimeUnit.MILLISECONDS);
+
+    assertTrue(bucket.tryConsume(3, 1, TimeUnit.SECONDS));
+    assertEquals(0, bucket.getNumTokens());
+  }
+
+  @Test
+  public void testTryConsumeWithTimeoutTimesOut()
+  {
+    // Without a prediction from the refill strategy the bucket waits out the timeout.
+    assertFalse(bucket.tryConsume(1, 10, TimeUnit.MILLISECONDS));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testTryConsumeWithNegativeTimeout()
+  {
+    bucket.tryConsume(1, -1, TimeUnit.MILLISECONDS);
+  }
+
+  @Test
+  public void testDeniedTryConsumesAreCounted()
+  {
+    assertFalse(bucket.tryConsume(1));
+    assertFalse(bucket.tryConsume(1, 10, TimeUnit.MILLISECONDS));
+    assertEquals(2, bucket.getNumDenied());
+
+    refillStrategy.addToken();
+    assertTrue(bucket.tryConsume(1));
+    assertEquals(0, bucket.getNumDenied());
+  }
+
+  @Test
+  public void testWaitingIsNotCountedAsDenied()
+  {
+    TokenBucketImpl bucket = new TokenBucketImpl(CAPACITY, 0, refillStrategy, new TokenBucket.SleepStrategy()
+    {
+      @Override
+      public void sleep()
+      {
+        refillStrategy.addToken();
+      }
+    });
+
+    // Each retry while waiting for the tokens finds too few of them.
+    bucket.consume(3);
+    assertEquals(0, bucket.getNumDenied());
+  }
+
+  /** Teach a bucket that refills add 2 tokens every 100ms, the next of which is due in 40ms. */
+  private void learnRefills(TokenBucketImpl bucket)
+  {
+    refillStrategy.setDurationUntilNextRefill(100, TimeUnit.MILLISECONDS);
+    refillStrategy.addTokens(2);
+    assertTrue(bucket.tryConsume(2));
+
+    refillStrategy.setDurationUntilNextRefill(40, TimeUnit.MILLISECONDS);
+  }
+
   private static final class MockRefillStrategy implements TokenBucketImpl.RefillStrategy
   {
     private long numTokensToAdd = 0;
+    private long durationUntilNextRefill = -1;
 
     public long refill()
     {
@@ -231,7 +707,16 @@ public class TokenBucketImplTest
     @Override
     public long getDurationUntilNextRefill(TimeUnit unit) throws UnsupportedOperationException
     {
-      throw new UnsupportedOperationException();
+      if (durationUntilNextRefill < 0) {
+        throw new UnsupportedOperationException();
+      }
+
+      return unit.convert(durationUntilNextRefill, TimeUnit.NANOSECONDS);
+    }
+
+    public void setDurationUntilNextRefill(long duration, TimeUnit unit)
+    {
+      durationUntilNextRefill = unit.toNanos(duration);
     }
 
     public void addToken()
@@ -0,0 +1,566 @@
+/*
+ * Copyright 2012-2014 Brandon Beck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.isomorphism.util;
+
+import com.google.common.base.Ticker;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Hammers the token bucket implementations from several threads that also take turns moving a mock clock forward,
+ * sometimes by many periods at once, and then checks the tokens that were granted against the time that passed.  Every
+ * token a bucket grants must have been in the bucket to begin with or been added by a refill, and no refill strategy
+ * may add more than its tokens per period for each period that has elapsed on the clock, so the tokens granted plus
+ * the tokens left over can never exceed the initial tokens plus that bound.  The bound comes from the clock alone, so
+ * a refill strategy that hands out too many tokens is caught as well as a bucket that grants more than it was given.
+ * <p/>
+ * When the capacity is large enough that no refill overflows, the tokens granted plus the tokens left over must also
+ * be exactly equal to the tokens the refill strategy handed out, so a lost update in either direction is caught.  And
+ * a bucket that starts full at the largest possible capacity must never lose tokens except to the consumes it grants,
+ * which catches a refill of a full bucket that overflows.
+ * <p/>
+ * Each scenario's throughput and how fairly the grants were spread between the threads, as Jain's fairness index where
+ * 1 means every thread was granted the same number of tokens, are included in the assertion messages, and printed when
+ * the {@code tokenbucket.stress.report} system property is set to {@code true}.
+ */
+public class TokenBucketStressTest
+{
+  private static final int NUM_THREADS = 4;
+  private static final int NUM_ATTEMPTS = 100000;
+  private static final int NUM_BLOCKING_ATTEMPTS = NUM_ATTEMPTS / 10;
+  private static final int ATTEMPTS_PER_TICK = 10;
+
+  private static final long CAPACITY = 50;
+  private static final long LARGE_CAPACITY = Long.MAX_VALUE;
+  private static final long N = 10;
+  private static final long P = 1;
+  private static final TimeUnit U = TimeUnit.MILLISECONDS;
+
+  private static final TokenBucket.SleepStrategy YIELDING_SLEEP_STRATEGY = new TokenBucket.SleepStrategy()
+  {
+    @Override
+    public void sleep()
+    {
+      Thread.yield();
+    }
+  };
+
+  private final ConcurrentTicker ticker = new ConcurrentTicker();
+
+  /** Blocked consumers move the clock forward themselves, since nobody else may be left to do it. */
+  private final TokenBucket.SleepStrategy tickingSleepStrategy = new TokenBucket.SleepStrategy()
+  {
+    private final AdvanceClock advanceClock = new AdvanceClock(ticker);
+
+    @Override
+    public void sleep()
+    {
+      advanceClock.run();
+      Thread.yield();
+    }
+  };
+
+  @Test
+  public void testFixedIntervalNeverOverGrants() throws InterruptedException
+  {
+    TokenBucketImpl bucket = new TokenBucketImpl(CAPACITY, CAPACITY, new FixedIntervalRefillStrategy(ticker, N, P, U),
+        YIELDING_SLEEP_STRATEGY);
+
+    Result result = run("fixed interval", bucket, new AdvanceClock(ticker));
+
+    assertTrue(result.toString(), result.granted + bucket.getNumTokens() <= CAPACITY + getMaxRefill(N));
+  }
+
+  @Test
+  public void testFixedIntervalConservesTokens() throws InterruptedException
+  {
+    AuditingRefillStrategy refillStrategy = new AuditingRefillStrategy(
+        new FixedIntervalRefillStrategy(ticker, N, P, U));
+    TokenBucketImpl bucket = new TokenBucketImpl(LARGE_CAPACITY, 0, refillStrategy, YIELDING_SLEEP_STRATEGY);
+
+    Result result = run("fixed interval, no overflow", bucket, new AdvanceClock(ticker));
+
+    assertEquals(result.toString(), refillStrategy.getNumTokens(), result.granted + bucket.getNumTokens());
+  }
+
+  @Test
+  public void testFixedIntervalNeverLosesTokensAtLargestCapacity() throws InterruptedException
+  {
+    TokenBucketImpl bucket = new TokenBucketImpl(LARGE_CAPACITY, LARGE_CAPACITY,
+        new FixedIntervalRefillStrategy(ticker, N, P, U), YIELDING_SLEEP_STRATEGY);
+
+    Result result = run("fixed interval, largest capacity", bucket, new AdvanceClock(ticker));
+
+    assertTrue(result.toString(), bucket.getNumTokens() >= LARGE_CAPACITY - result.granted);
+  }
+
+  @Test
+  public void testWarmingUpNeverOverGrants() throws InterruptedException
+  {
+    TokenBucketImpl bucket = new TokenBucketImpl(CAPACITY, CAPACITY,
+        new WarmingUpRefillStrategy(ticker, N, P, U, 10 * P, U), YIELDING_SLEEP_STRATEGY);
+
+    Result result = run("warming up", bucket, new AdvanceClock(ticker));
+
+    // The very first refill hands out a whole period's worth of tokens, on top of the steady rate.
+    assertTrue(result.toString(), result.granted + bucket.getNumTokens() <= CAPACITY + N + getMaxRefill(N));
+  }
+
+  @Test
+  public void testWarmingUpConservesTokens() throws InterruptedException
+  {
+    AuditingRefillStrategy refillStrategy = new AuditingRefillStrategy(
+        new WarmingUpRefillStrategy(ticker, N, P, U, 10 * P, U));
+    TokenBucketImpl bucket = new TokenBucketImpl(LARGE_CAPACITY, 0, refillStrategy, YIELDING_SLEEP_STRATEGY);
+
+    Result result = run("warming up, no overflow", bucket, new AdvanceClock(ticker));
+
+    assertEquals(result.toString(), refillStrategy.getNumTokens(), result.granted + bucket.getNumTokens());
+  }
+
+  @Test
+  public void testScheduledRefillNeverOverGrants() throws InterruptedException
+  {
+    RefillScheduler scheduler = new RefillScheduler(ticker, P, U, null);
+    TokenBucketImpl bucket = new TokenBucketImpl(CAPACITY, CAPACITY, scheduler.getRefillStrategy(),
+        YIELDING_SLEEP_STRATEGY);
+    scheduler.register(bucket, N);
+
+    Result result = run("scheduled refill", bucket, new RefillAll(scheduler, ticker));
+
+    assertTrue(result.toString(), result.granted + bucket.getNumTokens() <= CAPACITY + getMaxRefill(N));
+  }
+
+  @Test
+  public void testScheduledRefillConservesTokens() throws InterruptedException
+  {
+    RefillScheduler scheduler = new RefillScheduler(ticker, P, U, null);
+    TokenBucketImpl bucket = new TokenBucketImpl(LARGE_CAPACITY, 0, scheduler.getRefillStrategy(),
+        YIELDING_SLEEP_STRATEGY);
+    scheduler.register(bucket, N);
+    RefillAll refillAll = new RefillAll(scheduler, ticker);
+
+    Result result = run("scheduled refill, no overflow", bucket, refillAll);
+
+    assertEquals(result.toString(), N * refillAll.getNumRefills(), result.granted + bucket.getNumTokens());
+  }
+
+  @Test
+  public void testMultiTokenBucketNeverOverGrants() throws InterruptedException
+  {
+    TokenBucket.RefillStrategy[] refillStrategies = {
+        new FixedIntervalRefillStrategy(ticker, N, P, U),
+        new FixedIntervalRefillStrategy(ticker, 3 * N, P, U)
+    };
+    MultiTokenBucketImpl bucket = new MultiTokenBucketImpl(new long[]{CAPACITY, 2 * CAPACITY},
+        new long[]{CAPACITY, 2 * CAPACITY}, refillStrategies, YIELDING_SLEEP_STRATEGY);
+
+    Result result = run("multi-dimensional", bucket, new AdvanceClock(ticker));
+
+    assertTrue(result.toString(), result.granted + bucket.getNumTokens(0) <= CAPACITY + getMaxRefill(N));
+    assertTrue(result.toString(), 2 * result.granted + bucket.getNumTokens(1) <= 2 * CAPACITY + getMaxRefill(3 * N));
+  }
+
+  @Test
+  public void testMultiTokenBucketConservesTokens() throws InterruptedException
+  {
+    AuditingRefillStrategy[] refillStrategies = {
+        new AuditingRefillStrategy(new FixedIntervalRefillStrategy(ticker, N, P, U)),
+        new AuditingRefillStrategy(new FixedIntervalRefillStrategy(ticker, 3 * N, P, U))
+    };
+    MultiTokenBucketImpl bucket = new MultiTokenBucketImpl(new long[]{LARGE_CAPACITY, LARGE_CAPACITY},
+        new long[]{0, 0}, refillStrategies, YIELDING_SLEEP_STRATEGY);
+
+    Result result = run("multi-dimensional, no overflow", bucket, new AdvanceClock(ticker));
+
+    // Every grant consumes from both dimensions or from neither.
+    assertEquals(result.toString(), refillStrategies[0].getNumTokens(), result.granted + bucket.getNumTokens(0));
+    assertEquals(result.toString(), refillStrategies[1].getNumTokens(), 2 * result.granted + bucket.getNumTokens(1));
+  }
+
+  @Test
+  public void testMultiTokenBucketNeverLosesTokensAtLargestCapacity() throws InterruptedException
+  {
+    TokenBucket.RefillStrategy[] refillStrategies = {
+        new FixedIntervalRefillStrategy(ticker, N, P, U),
+        new FixedIntervalRefillStrategy(ticker, 3 * N, P, U)
+    };
+    MultiTokenBucketImpl bucket = new MultiTokenBucketImpl(new long[]{LARGE_CAPACITY, LARGE_CAPACITY},
+        new long[]{LARGE_CAPACITY, LARGE_CAPACITY}, refillStrategies, YIELDING_SLEEP_STRATEGY);
+
+    Result result = run("multi-dimensional, largest capacity", bucket, new AdvanceClock(ticker));
+
+    assertTrue(result.toString(), bucket.getNumTokens(0) >= LARGE_CAPACITY - result.granted);
+    assertTrue(result.toString(), bucket.getNumTokens(1) >= LARGE_CAPACITY - 2 * result.granted);
+  }
+
+  @Test
+  public void testBlockingConsumeNeverOverGrants() throws InterruptedException
+  {
+    final TokenBucketImpl bucket = new TokenBucketImpl(CAPACITY, CAPACITY,
+        new FixedIntervalRefillStrategy(ticker, N, P, U), tickingSleepStrategy);
+
+    Result result = run("blocking consume", NUM_BLOCKING_ATTEMPTS, new Attempt()
+    {
+      @Override
+      public long tryConsume(Random random)
+      {
+        long numTokens = 1 + random.nextInt(3);
+        bucket.consume(numTokens);
+        return numTokens;
+      }
+    }, new AdvanceClock(ticker));
+
+    assertTrue(result.toString(), result.granted + bucket.getNumTokens() <= CAPACITY + getMaxRefill(N));
+  }
+
+  @Test
+  public void testPrioritiesNeverOverGrant() throws InterruptedException
+  {
+    final TokenBucketImpl bucket = new TokenBucketImpl(CAPACITY, CAPACITY, 0, new long[]{0, 10},
+        new FixedIntervalRefillStrategy(ticker, N, P, U), tickingSleepStrategy);
+
+    Result result = run("priorities", NUM_BLOCKING_ATTEMPTS, new Attempt()
+    {
+      @Override
+      public long tryConsume(Random random)
+      {
+        long numTokens = 1 + random.nextInt(3);
+
+        // High priority consumers wait for their tokens, which holds back the low priority ones while they do.
+        if (random.nextInt(4) == 0) {
+          bucket.consume(numTokens, 1);
+          return numTokens;
+        }
+
+        return bucket.tryConsume(numTokens, 0) ? numTokens : 0;
+      }
+    }, new AdvanceClock(ticker));
+
+    assertTrue(result.toString(), result.granted + bucket.getNumTokens() <= CAPACITY + getMaxRefill(N));
+  }
+
+  @Test
+  public void testChargesNeverOverGrant() throws InterruptedException
+  {
+    final TokenBucketImpl bucket = new TokenBucketImpl(CAPACITY, CAPACITY, CAPACITY, new long[1],
+        new FixedIntervalRefillStrategy(ticker, N, P, U), YIELDING_SLEEP_STRATEGY);
+
+    Result result = run("charges", NUM_ATTEMPTS, new Attempt()
+    {
+      @Override
+      public long tryConsume(Random random)
+      {
+        long estimatedTokens = 1 + random.nextInt(3);
+        TokenBucket.Charge charge = bucket.tryCharge(estimatedTokens);
+        if (charge == null) {
+          return 0;
+        }
+
+        // Settling for less refunds the difference, settling for more can only take tokens away, so what the work was
+        // really granted is the smaller of the two.
+        long actualTokens = random.nextInt((int) (2 * estimatedTokens + 1));
+        charge.settle(actualTokens);
+        return Math.min(estimatedTokens, actualTokens);
+      }
+    }, new AdvanceClock(ticker));
+
+    assertTrue(result.toString(), result.granted <= CAPACITY + getMaxRefill(N));
+  }
+
+  @Test
+  public void testConfigUpdatesNeverOverGrant() throws InterruptedException
+  {
+    final TokenBucketConfig config = new TokenBucketConfig(CAPACITY, N, P, U);
+    final TokenBucketImpl bucket = config.newBucket(ticker, CAPACITY, YIELDING_SLEEP_STRATEGY);
+    final AdvanceClock advanceClock = new AdvanceClock(ticker);
+    final Random random = new Random(0);
+
+    // Every so often switch between the original limits and half the capacity with twice the refill rate.
+    Result result = run("config updates", bucket, new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        advanceClock.run();
+
+        int choice = random.nextInt(20);
+        if (choice == 0) {
+          config.update(CAPACITY, N, P, U);
+        } else if (choice == 1) {
+          config.update(CAPACITY / 2, 2 * N, P, U);
+        }
+      }
+    });
+
+    assertTrue(result.toString(), result.granted + bucket.getNumTokens() <= CAPACITY + getMaxRefill(2 * N));
+  }
+
+  @Test
+  public void testLongIdlePeriodRefillsToCapacity()
+  {
+    TokenBucketImpl bucket = new TokenBucketImpl(CAPACITY, 0,
+        new FixedIntervalRefillStrategy(ticker, Long.MAX_VALUE / 4, 1, TimeUnit.NANOSECONDS),
+        YIELDING_SLEEP_STRATEGY);
+    assertTrue(bucket.tryConsume(CAPACITY));
+
+    // Enough periods pass that the number of tokens they're worth doesn't fit in a long.
+    ticker.advance(8);
+    assertEquals(CAPACITY, bucket.getNumTokens());
+  }
+
+  /**
+   * Returns the most tokens a refill strategy adding the specified number of tokens every period may have handed out
+   * by the current time on the clock, counting the period that is under way.
+   */
+  private long getMaxRefill(long tokensPerPeriod)
+  {
+    return tokensPerPeriod * (ticker.read() / U.toNanos(P) + 1);
+  }
+
+  /**
+   * Run {@link #NUM_THREADS} threads that each make {@link #NUM_ATTEMPTS} attempts to consume tokens from a token
+   * bucket, ticking the clock every {@link #ATTEMPTS_PER_TICK} attempts.
+   */
+  private Result run(String name, final TokenBucket bucket, Runnable tick) throws InterruptedException
+  {
+    return run(name, NUM_ATTEMPTS, new Attempt()
+    {
+      @Override
+      public long tryConsume(Random random)
+      {
+        long numTokens = 1 + random.nextInt(3);
+
+        // Mix in the timed variant with no time to wait, which takes the same fast path as an ordinary try.
+        boolean consumed = random.nextBoolean()
+            ? bucket.tryConsume(numTokens)
+            : bucket.tryConsume(numTokens, 0, TimeUnit.NANOSECONDS);
+
+        return consumed ? numTokens : 0;
+      }
+    }, tick);
+  }
+
+  /**
+   * Run against a two dimensional token bucket, each grant consumes one token from the first dimension and two from
+   * the second, so the number granted is the number of grants.
+   */
+  private Result run(String name, final MultiTokenBucket bucket, Runnable tick) throws InterruptedException
+  {
+    final long[] numTokens = {1, 2};
+
+    return run(name, NUM_ATTEMPTS, new Attempt()
+    {
+      @Override
+      public long tryConsume(Random random)
+      {
+        return bucket.tryConsume(numTokens) ? 1 : 0;
+      }
+    }, tick);
+  }
+
+  private Result run(String name, final int numAttempts, final Attempt attempt, final Runnable tick)
+      throws InterruptedException
+  {
+    final long[] granted = new long[NUM_THREADS];
+    final CountDownLatch start = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(NUM_THREADS);
+
+    Thread[] threads = new Thread[NUM_THREADS];
+    for (int i = 0; i < NUM_THREADS; i++) {
+      final int thread = i;
+      threads[i] = new Thread(new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          Random random = new Random(thread);
+          try {
+            start.await();
+            for (int j = 0; j < numAttempts; j++) {
+              if (j % ATTEMPTS_PER_TICK == 0) {
+                tick.run();
+              }
+
+              granted[thread] += attempt.tryConsume(random);
+            }
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          } finally {
+            done.countDown();
+          }
+        }
+      });
+      threads[i].start();
+    }
+
+    long startTime = System.nanoTime();
+    start.countDown();
+    done.await();
+    long elapsed = System.nanoTime() - startTime;
+
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    long total = 0;
+    long sumOfSquares = 0;
+    for (long n : granted) {
+      total += n;
+      sumOfSquares += n * n;
+    }
+
+    double fairness = (sumOfSquares == 0) ? 1 : (double) total * total / (NUM_THREADS * sumOfSquares);
+    Result result = new Result(total, String.format("%s: %d attempts in %d ms (%.0f attempts/s), %d granted, "
+        + "fairness %.3f, %d ns on the clock", name, NUM_THREADS * numAttempts, TimeUnit.NANOSECONDS.toMillis(elapsed),
+        NUM_THREADS * numAttempts * 1e9 / elapsed, total, fairness, ticker.read()));
+
+    if (Boolean.getBoolean("tokenbucket.stress.report")) {
+      System.out.println(result);
+    }
+
+    return result;
+  }
+
+  /** The total number of tokens granted by a run, along with a summary of it for assertion messages. */
+  private static final class Result
+  {
+    final long granted;
+    private final String summary;
+
+    Result(long granted, String summary)
+    {
+      this.granted = granted;
+      this.summary = summary;
+    }
+
+    @Override
+    public String toString()
+    {
+      return summary;
+    }
+  }
+
+  private interface Attempt
+  {
+    /** Attempt to consume from the bucket, returning the amount granted or 0 if the attempt was denied. */
+    long tryConsume(Random random);
+  }
+
+  /** Moves the clock forward, usually by a fraction of a period but every so often by many periods at once. */
+  private static final class AdvanceClock implements Runnable
+  {
+    private final ConcurrentTicker ticker;
+    private final Random random = new Random(0);   // Random is safe to share between threads
+
+    AdvanceClock(ConcurrentTicker ticker)
+    {
+      this.ticker = ticker;
+    }
+
+    @Override
+    public void run()
+    {
+      long period = U.toNanos(P);
+      ticker.advance(random.nextInt(100) == 0 ? random.nextInt(50) * period : random.nextInt((int) period / 2));
+    }
+  }
+
+  /**
+   * Moves the clock forward by a period and has a refill scheduler push a period's worth of tokens into its buckets,
+   * counting how many times it did.
+   */
+  private static final class RefillAll implements Runnable
+  {
+    private final RefillScheduler scheduler;
+    private final ConcurrentTicker ticker;
+    private final AtomicLong numRefills = new AtomicLong();
+
+    RefillAll(RefillScheduler scheduler, ConcurrentTicker ticker)
+    {
+      this.scheduler = scheduler;
+      this.ticker = ticker;
+    }
+
+    @Override
+    public void run()
+    {
+      ticker.advance(U.toNanos(P));
+      scheduler.refillAll();
+      numRefills.incrementAndGet();
+    }
+
+    long getNumRefills()
+    {
+      return numRefills.get();
+    }
+  }
+
+  /** A refill strategy that keeps a tally of the tokens handed out by another one. */
+  private static final class AuditingRefillStrategy implements TokenBucket.RefillStrategy
+  {
+    private final TokenBucket.RefillStrategy delegate;
+    private final AtomicLong numTokens = new AtomicLong();
+
+    AuditingRefillStrategy(TokenBucket.RefillStrategy delegate)
+    {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public long refill()
+    {
+      long refilled = delegate.refill();
+      numTokens.addAndGet(refilled);
+      return refilled;
+    }
+
+    @Override
+    public long getDurationUntilNextRefill(TimeUnit unit) throws UnsupportedOperationException
+    {
+      return delegate.getDurationUntilNextRefill(unit);
+    }
+
+    long getNumTokens()
+    {
+      return numTokens.get();
+    }
+  }
+
+  /** A mock ticker that can be safely advanced by one thread while others read it. */
+  private static final class ConcurrentTicker extends Ticker
+  {
+    private final AtomicLong now = new AtomicLong();
+
+    @Override
+    public long read()
+    {
+      return now.get();
+    }
+
+    public void advance(long nanos)
+    {
+      now.addAndGet(nanos);
+    }
+  }
+}
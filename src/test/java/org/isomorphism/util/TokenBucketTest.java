@@ -0,0 +1,193 @@
+/*
+ * Copyright 2012-2014 Brandon Beck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.isomorphism.util;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/** Tests the default methods of {@link TokenBucket} through an implementation that only has the original methods. */
+public class TokenBucketTest
+{
+  private static final long CAPACITY = 10;
+
+  private final SimpleTokenBucket bucket = new SimpleTokenBucket();
+
+  @Test
+  public void testTryConsumeAtLowestPriority()
+  {
+    bucket.refill(2);
+    assertTrue(bucket.tryConsume(2, 0));
+    assertFalse(bucket.tryConsume(1, 0));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testTryConsumeAtHigherPriority()
+  {
+    bucket.tryConsume(1, 1);
+  }
+
+  @Test
+  public void testConsumeAtLowestPriority()
+  {
+    bucket.refill(2);
+    bucket.consume(2, 0);
+    assertEquals(0, bucket.getNumTokens());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConsumeAtHigherPriority()
+  {
+    bucket.consume(1, 1);
+  }
+
+  @Test
+  public void testTimedTryConsumeWithTokensAvailable()
+  {
+    bucket.refill(2);
+    assertTrue(bucket.tryConsume(2, 0, TimeUnit.SECONDS));
+    assertEquals(0, bucket.getNumTokens());
+  }
+
+  @Test
+  public void testTimedTryConsumeTimesOut()
+  {
+    bucket.refill(1);
+    assertFalse(bucket.tryConsume(2, 10, TimeUnit.MILLISECONDS));
+    assertEquals(1, bucket.getNumTokens());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testTimedTryConsumeWithNegativeTimeout()
+  {
+    bucket.tryConsume(1, -1, TimeUnit.SECONDS);
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void testEstimatedWait()
+  {
+    bucket.getEstimatedWait(1, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void testTryChargeOnEmptyBucket()
+  {
+    assertNull(bucket.tryCharge(1));
+  }
+
+  @Test
+  public void testSettleForLessRefunds()
+  {
+    bucket.refill(5);
+    TokenBucket.Charge charge = bucket.tryCharge(4);
+    assertEquals(4, charge.getEstimatedTokens());
+    assertEquals(1, bucket.getNumTokens());
+
+    charge.settle(1);
+    assertEquals(4, bucket.getNumTokens());
+  }
+
+  @Test
+  public void testSettleForMoreConsumes()
+  {
+    bucket.refill(5);
+    bucket.charge(2).settle(4);
+    assertEquals(1, bucket.getNumTokens());
+  }
+
+  @Test
+  public void testSettleForMoreThanAvailableEmptiesBucket()
+  {
+    bucket.refill(5);
+    bucket.tryCharge(2).settle(10);
+    assertEquals(0, bucket.getNumTokens());
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testSettleTwice()
+  {
+    bucket.refill(5);
+    TokenBucket.Charge charge = bucket.tryCharge(2);
+    charge.settle(2);
+    charge.settle(2);
+  }
+
+  /** A token bucket that only implements the methods that have no default implementation. */
+  private static final class SimpleTokenBucket implements TokenBucket
+  {
+    private long size = 0;
+
+    @Override
+    public long getCapacity()
+    {
+      return CAPACITY;
+    }
+
+    @Override
+    public long getNumTokens()
+    {
+      return size;
+    }
+
+    @Override
+    public long getDurationUntilNextRefill(TimeUnit unit) throws UnsupportedOperationException
+    {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean tryConsume()
+    {
+      return tryConsume(1);
+    }
+
+    @Override
+    public boolean tryConsume(long numTokens)
+    {
+      if (numTokens <= size) {
+        size -= numTokens;
+        return true;
+      }
+
+      return false;
+    }
+
+    @Override
+    public void consume()
+    {
+      consume(1);
+    }
+
+    @Override
+    public void consume(long numTokens)
+    {
+      while (!tryConsume(numTokens)) {
+        Thread.yield();
+      }
+    }
+
+    @Override
+    public void refill(long numTokens)
+    {
+      size = Math.min(CAPACITY, size + numTokens);
+    }
+  }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2012-2014 Brandon Beck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.isomorphism.util;
+
+import com.google.common.base.Ticker;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WarmingUpRefillStrategyTest
+{
+  private static final long N = 30;                    // 30 tokens
+  private static final long P = 1;                     // every 1
+  private static final long W = 10;                    // warming up over 10
+  private static final TimeUnit U = TimeUnit.SECONDS;  // seconds
+
+  private final MockTicker ticker = new MockTicker();
+  private final WarmingUpRefillStrategy strategy = new WarmingUpRefillStrategy(ticker, N, P, U, W, U);
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testColdFactorBelowOne()
+  {
+    new WarmingUpRefillStrategy(ticker, N, P, U, W, U, 0.5);
+  }
+
+  @Test
+  public void testFirstRefill()
+  {
+    assertEquals(N, strategy.refill());
+  }
+
+  @Test
+  public void testStartsAtColdRate()
+  {
+    strategy.refill();
+
+    // Over the first period the rate goes from N/3 to a little above it, so we should get just over N/3 tokens.
+    ticker.advance(P, U);
+    assertEquals(N / 3 + 1, strategy.refill());
+  }
+
+  @Test
+  public void testRampsUpToSteadyRate()
+  {
+    strategy.refill();
+
+    // Over the warm up period the rate ramps linearly from N/3 to N per period, so on average it's 2N/3 per period.
+    long total = 0;
+    for (int i = 0; i < W; i++) {
+      ticker.advance(P, U);
+      total += strategy.refill();
+    }
+    assertEquals(2 * N * W / 3, total);
+
+    // After that we get the steady rate.
+    for (int i = 0; i < W; i++) {
+      ticker.advance(P, U);
+      assertEquals(N, strategy.refill());
+    }
+  }
+
+  @Test
+  public void testRateIncreasesWhileWarmingUp()
+  {
+    strategy.refill();
+
+    long previous = 0;
+    for (int i = 0; i < W; i++) {
+      ticker.advance(P, U);
+      long numTokens = strategy.refill();
+      assertTrue(numTokens >= previous);
+      previous = numTokens;
+    }
+  }
+
+  @Test
+  public void testGoesColdAfterIdle()
+  {
+    strategy.refill();
+    for (int i = 0; i < 2 * W; i++) {
+      ticker.advance(P, U);
+      strategy.refill();
+    }
+
+    // Idle for a long time, we should only get a single period's worth of tokens and then be back at the cold rate.
+    ticker.advance(100 * W, U);
+    assertEquals(N, strategy.refill());
+
+    ticker.advance(P, U);
+    assertEquals(N / 3 + 1, strategy.refill());
+  }
+
+  @Test
+  public void testShortIdleAccruesAtColdRate()
+  {
+    // With a warm up period of a single period, being idle for it accrues only N/3 tokens at the cold rate.
+    WarmingUpRefillStrategy strategy = new WarmingUpRefillStrategy(ticker, N, P, U, P, U);
+    strategy.refill();
+
+    ticker.advance(P, U);
+    assertEquals(N / 3, strategy.refill());
+  }
+
+  @Test
+  public void testIdlePollingKeepsFractionalTokens()
+  {
+    // 1 token a minute warming up over a minute, polled every 2 minutes so every poll finds the bucket idle and less
+    // than a whole token accrues between polls.
+    WarmingUpRefillStrategy strategy = new WarmingUpRefillStrategy(ticker, 1, 1, TimeUnit.MINUTES, 1,
+        TimeUnit.MINUTES);
+    strategy.refill();
+
+    long numTokens = 0;
+    for (int i = 0; i < 100; i++) {
+      ticker.advance(2, TimeUnit.MINUTES);
+      numTokens += strategy.refill();
+    }
+
+    // 200 minutes at the cold rate of a third of a token a minute.
+    assertEquals(66, numTokens);
+  }
+
+  @Test
+  public void testFullBucketDoesNotBurstAfterIdle()
+  {
+    // 10 tokens a second warming up over 10 seconds, consumed from once a second so the bucket fills up.
+    TokenBucketImpl bucket = new TokenBucketImpl(100, 0,
+        new WarmingUpRefillStrategy(ticker, 10, 1, TimeUnit.SECONDS, 10, TimeUnit.SECONDS),
+        new TokenBucket.SleepStrategy()
+        {
+          @Override
+          public void sleep()
+          {
+          }
+        });
+    for (int i = 0; i < 200; i++) {
+      assertTrue(bucket.tryConsume());
+      ticker.advance(1, TimeUnit.SECONDS);
+    }
+    assertEquals(100, bucket.getNumTokens());
+
+    // After being idle only a single period's worth of tokens may be consumed right away.
+    ticker.advance(60, TimeUnit.SECONDS);
+    int numConsumed = 0;
+    while (bucket.tryConsume()) {
+      numConsumed++;
+    }
+    assertEquals(10, numConsumed);
+
+    // And then tokens arrive at a little over the cold rate of a third of the steady rate, which together with the
+    // fraction of a token held over from before makes 4 rather than the 10 of the steady rate.
+    ticker.advance(1, TimeUnit.SECONDS);
+    assertEquals(4, bucket.getNumTokens());
+  }
+
+  @Test
+  public void testStoredTokensOnlyGoColdAfterIdle()
+  {
+    strategy.refill();
+
+    ticker.advance(W - 1, U);
+    assertEquals(0, strategy.getNumColdTokens(N));
+
+    ticker.advance(1, U);
+    assertEquals(N, strategy.getNumColdTokens(N));
+  }
+
+  @Test
+  public void testRefillIntervalFollowsRate()
+  {
+    strategy.refill();
+
+    // At the cold rate a token arrives every 3P/N, once warmed up every P/N.
+    assertEquals(1, strategy.getNumTokensPerRefill());
+    assertEquals(U.toMillis(3 * P) / N, strategy.getRefillInterval(TimeUnit.MILLISECONDS));
+
+    for (int i = 0; i < W; i++) {
+      ticker.advance(P, U);
+      strategy.refill();
+    }
+    assertEquals(U.toMillis(P) / N, strategy.getRefillInterval(TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  public void testDurationUntilFirstRefill()
+  {
+    assertEquals(0, strategy.getDurationUntilNextRefill(U));
+  }
+
+  @Test
+  public void testDurationWhileCold()
+  {
+    strategy.refill();
+
+    // At the cold rate a token arrives every 3P/N.
+    long duration = strategy.getDurationUntilNextRefill(TimeUnit.MILLISECONDS);
+    assertEquals(U.toMillis(3 * P) / N, duration);
+  }
+
+  @Test
+  public void testDurationWhenTokensAvailable()
+  {
+    strategy.refill();
+    ticker.advance(P, U);
+
+    assertEquals(0, strategy.getDurationUntilNextRefill(U));
+  }
+
+  @Test
+  public void testBuilder()
+  {
+    TokenBucket bucket = TokenBuckets.builder()
+        .withCapacity(N)
+        .withWarmingUpRefillStrategy(N, P, U, W, U)
+        .build();
+
+    assertEquals(N, bucket.getNumTokens());
+  }
+
+  private static final class MockTicker extends Ticker
+  {
+    private long now = 0;
+
+    @Override
+    public long read()
+    {
+      return now;
+    }
+
+    public void advance(long delta, TimeUnit unit)
+    {
+      now += unit.toNanos(delta);
+    }
+  }
+}